@@ -22,6 +22,11 @@ tasks.jar {
     from(zipTree(java6Jar.map { it.outputs.files.singleFile }))
     from(zipTree(java21Jar.map { it.outputs.files.singleFile }))
 
+    // See the java21 shadowJar; the launcher jar has to stay stored for the entries built into it
+    if (providers.gradleProperty("hyacinthusclip.storeEntries").map(String::toBoolean).getOrElse(false)) {
+        entryCompression = ZipEntryCompression.STORED
+    }
+
     manifest {
         attributes(
             "Main-Class" to mainClass,
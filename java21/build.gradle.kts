@@ -1,6 +1,7 @@
 plugins {
     java
     id("com.gradleup.shadow") version "9.4.1"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 java {
@@ -35,6 +36,13 @@ dependencies {
     implementation("org.jetbrains:annotations:15.0")
 }
 
+// ./gradlew :java21:jmh, set -Phyacinthusclip.jmhPatch=<file> to benchmark a real BSDIFF40 patch
+jmh {
+    providers.gradleProperty("hyacinthusclip.jmhPatch").orNull?.let { patch ->
+        jvmArgsAppend.add("-Dhyacinthusclip.jmhPatch=${file(patch).absolutePath}")
+    }
+}
+
 tasks.shadowJar {
     val prefix = "hyacinthusclip.libs"
     listOf("org.apache", "org.tukaani", "io.sigpipe", "com.google").forEach { pack ->
@@ -43,4 +51,9 @@ tasks.shadowJar {
 
     exclude("META-INF/LICENSE.txt")
     exclude("META-INF/NOTICE.txt")
+
+    // Stored entries are extracted with FileChannel.transferTo instead of being inflated at launch
+    if (providers.gradleProperty("hyacinthusclip.storeEntries").map(String::toBoolean).getOrElse(false)) {
+        entryCompression = ZipEntryCompression.STORED
+    }
 }
@@ -0,0 +1,113 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import io.sigpipe.jbsdiff.Diff;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the largest block of a bsdiff patch with {@link ParallelBZip2InputStream} and with the sequential
+ * {@link BZip2CompressorInputStream} it replaces.
+ * <p>
+ * The patch is {@code hyacinthusclip.jmhPatch} if set, a jbsdiff patch of two generated files otherwise. The setup
+ * fails unless both decoders produce the same bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BZip2DecodeBenchmark {
+    private static final int HEADER_SIZE = 32;
+    private static final int GENERATED_SIZE = 8 * 1024 * 1024;
+
+    private byte[] block;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final String configured = System.getProperty("hyacinthusclip.jmhPatch");
+        final byte[] patch = configured != null ? Files.readAllBytes(Path.of(configured)) : generatedPatch();
+
+        // The diff or the extra block, whichever is larger; it spans many bzip2 blocks on any real patch
+        final int diffStart = (int) (HEADER_SIZE + readOffset(patch, 8));
+        final int extraStart = (int) (diffStart + readOffset(patch, 16));
+        this.block = extraStart - diffStart >= patch.length - extraStart
+                ? Arrays.copyOfRange(patch, diffStart, extraStart)
+                : Arrays.copyOfRange(patch, extraStart, patch.length);
+
+        final byte[] sequential = this.sequential();
+        final byte[] parallel = this.parallel();
+        if (!Arrays.equals(sequential, parallel)) {
+            throw new IllegalStateException("Decoded block differs: " + sequential.length + " bytes sequentially, "
+                    + parallel.length + " bytes in parallel, first difference at " + Arrays.mismatch(sequential, parallel));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ParallelBZip2InputStream.shutdown();
+    }
+
+    @Benchmark
+    public byte[] sequential() throws IOException {
+        return decode(new BZip2CompressorInputStream(new ByteArrayInputStream(this.block)));
+    }
+
+    @Benchmark
+    public byte[] parallel() throws IOException {
+        return decode(new ParallelBZip2InputStream(new ByteArrayInputStream(this.block), ParallelBZip2InputStream.lookahead()));
+    }
+
+    private static byte[] decode(final InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Patches a pseudo-random file to a copy with every fourth byte changed. The changes leave no runs for bzip2's
+     * run-length pass to collapse, so the block holding them compresses to one bzip2 block per 900 kB.
+     */
+    private static byte[] generatedPatch() throws Exception {
+        final Random random = new Random(0);
+        final byte[] original = new byte[GENERATED_SIZE];
+        random.nextBytes(original);
+        final byte[] modified = original.clone();
+        for (int i = 0; i < modified.length; i += 4) {
+            modified[i] += (byte) (1 + random.nextInt(7));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Diff.diff(original, modified, out);
+        return out.toByteArray();
+    }
+
+    private static long readOffset(final byte[] patch, final int offset) {
+        long value = patch[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (patch[offset + i] & 0xFF);
+        }
+        return (patch[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+}
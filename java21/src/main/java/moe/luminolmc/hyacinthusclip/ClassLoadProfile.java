@@ -0,0 +1,185 @@
+package moe.luminolmc.hyacinthusclip;
+
+import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
+import moe.luminolmc.hyacinthusclip.verify.FileFingerprints;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The classes the launch class loader defines while the server starts, in the order it defines them.
+ * <p>
+ * With {@code hyacinthusclip.classProfile}, a launch without a profile for the current launcher and server jar records
+ * one for the first {@code hyacinthusclip.classProfile.seconds} seconds (60 by default) and stores it in the repo dir
+ * once that window is over. Later launches load the recorded classes on background threads while the server starts,
+ * so the server finds most of its classes already defined instead of reading and defining them one at a time.
+ * <p>
+ * A class is only defined after its superclass and interfaces, so the recorded order never has a class before its
+ * supertypes. The profile is loaded in batches of that order, taken in turn by the workers, and classes are not
+ * initialized: static initializers still run when and where the server first uses a class. With the mixin environment
+ * a single worker loads the profile, so classes are transformed one at a time as they are without a profile.
+ */
+public final class ClassLoadProfile {
+    public static final String FILE_NAME = "class-load.profile";
+    private static final int BATCH_SIZE = 256;
+
+    private static final Queue<String> recorded = new ConcurrentLinkedQueue<>();
+    private static volatile boolean recording;
+
+    private ClassLoadProfile() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("hyacinthusclip.classProfile");
+    }
+
+    /**
+     * Preloads the profile into {@code classLoader} if there is one for this launch, records one otherwise. Call
+     * before the server main class is loaded.
+     */
+    public static void start(final Path repoDir, final ClassLoader classLoader, final boolean mixin) {
+        final Path file = repoDir.resolve(FILE_NAME);
+        final String identity = identity(mixin);
+        final List<String> profile = read(file, identity);
+        if (profile != null) {
+            preload(profile, classLoader, mixin ? 1 : threads());
+            return;
+        }
+
+        recording = true;
+        final long seconds = Math.max(1, Long.getLong("hyacinthusclip.classProfile.seconds", 60));
+        final Thread recorder = new Thread(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(seconds);
+            } catch (final InterruptedException e) {
+                return;
+            } finally {
+                recording = false;
+            }
+            final List<String> classes = List.copyOf(recorded);
+            recorded.clear();
+            Housekeeping.defer("class-profile", () -> write(file, identity, classes));
+        }, "Hyacinthusclip-ClassProfile");
+        recorder.setDaemon(true);
+        recorder.start();
+        Hyacinthusclip.logger.info("No class load profile for this server yet, recording one for {} seconds", seconds);
+    }
+
+    /**
+     * Called by the launch class loaders for every class they define.
+     */
+    public static void defined(final String name) {
+        if (recording) {
+            recorded.add(name);
+        }
+    }
+
+    private static void preload(final List<String> profile, final ClassLoader classLoader, final int threads) {
+        final int batches = (profile.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        final AtomicInteger nextBatch = new AtomicInteger();
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(threads);
+        final long start = System.nanoTime();
+
+        final Runnable worker = () -> {
+            int batch;
+            while ((batch = nextBatch.getAndIncrement()) < batches) {
+                final int end = Math.min(profile.size(), (batch + 1) * BATCH_SIZE);
+                for (int i = batch * BATCH_SIZE; i < end; i++) {
+                    try {
+                        Class.forName(profile.get(i), false, classLoader);
+                        loaded.incrementAndGet();
+                    } catch (final ClassNotFoundException | LinkageError e) {
+                        // Gone from the class path or failing to load, the server sees the same when it needs it
+                    }
+                }
+            }
+            if (running.decrementAndGet() == 0) {
+                Hyacinthusclip.logger.info("Preloaded {} of {} profiled classes in {} ms", loaded.get(), profile.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        };
+
+        for (int i = 0; i < threads; i++) {
+            final Thread thread = new Thread(worker, "Hyacinthusclip-Preload-" + i);
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns {@code hyacinthusclip.classProfile.threads}, by default one per core short of the one the server main
+     * thread runs on, at most four.
+     */
+    private static int threads() {
+        final int configured = Integer.getInteger("hyacinthusclip.classProfile.threads", 0);
+        if (configured > 0) {
+            return configured;
+        }
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    private static List<String> read(final Path file, final String identity) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        final List<String> classes = new ArrayList<>();
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!identity.equals(reader.readLine())) {
+                return null;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    classes.add(line);
+                }
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Ignoring unusable class load profile {}: {}", file, e.getMessage());
+            return null;
+        }
+        return classes;
+    }
+
+    private static void write(final Path file, final String identity, final List<String> classes) {
+        final Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(identity);
+                writer.newLine();
+                for (final String name : classes) {
+                    writer.write(name);
+                    writer.newLine();
+                }
+            }
+            Util.moveAtomically(temp, file);
+            Hyacinthusclip.logger.info("Recorded class load profile of {} classes", classes.size());
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to write class load profile {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Describes what decides which classes the server loads: the launcher, the server jar and whether mixins apply.
+     * The libraries follow from the server jar.
+     */
+    private static String identity(final boolean mixin) {
+        return String.join("|",
+                FileFingerprints.describeIfPresent(AutoUpdate.getCurrentLauncherJarPath()),
+                FileFingerprints.describeIfPresent(AutoUpdate.getTargetJarPath()),
+                String.valueOf(mixin)
+        );
+    }
+}
@@ -0,0 +1,137 @@
+package moe.luminolmc.hyacinthusclip;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Collects the class path while its entries are resolved concurrently. Every entry of a list has a fixed slot at its
+ * position in the list, so the class path comes out in list order no matter which download or patch finishes first,
+ * and is the same on every launch.
+ * <p>
+ * All lists have to be added before any URL is set; setting URLs is safe from any thread. Every slot is a future, so
+ * the class path can also be handed out before it is complete, see {@link #slots()}.
+ */
+public final class ClasspathBuilder {
+    // Sections keep the order they were added in, the versions have to come before the libraries
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+    private final CompletableFuture<Void> sealed = new CompletableFuture<>();
+
+    /**
+     * Adds the list of {@code location}, {@code entries} may be null if the jar has no such list.
+     */
+    public ClasspathBuilder add(final String location, final FileEntry[] entries) {
+        this.sections.put(location, new Section(entries == null ? new FileEntry[0] : entries));
+        return this;
+    }
+
+    public FileEntry[] entries(final String location) {
+        return this.section(location).entries;
+    }
+
+    /**
+     * Puts {@code url} in the slot of {@code path}, replacing whatever was there.
+     */
+    public void set(final String location, final String path, final URL url) {
+        final Section section = this.section(location);
+        final Integer index = section.index.get(path);
+        if (index != null) {
+            final CompletableFuture<URL> slot = section.slots[index];
+            if (!slot.complete(url)) {
+                slot.obtrudeValue(url);
+            }
+        } else {
+            section.unlisted.put(path, url);
+        }
+    }
+
+    /**
+     * Marks everything that sets URLs as done. Slots nobody set are left off the class path, or fail with
+     * {@code error} if that is not null.
+     */
+    public void seal(final Throwable error) {
+        for (final Section section : this.sections.values()) {
+            for (final CompletableFuture<URL> slot : section.slots) {
+                if (error == null) {
+                    slot.complete(null);
+                } else {
+                    slot.completeExceptionally(error);
+                }
+            }
+        }
+        if (error == null) {
+            this.sealed.complete(null);
+        } else {
+            this.sealed.completeExceptionally(error);
+        }
+    }
+
+    public CompletableFuture<Void> sealed() {
+        return this.sealed;
+    }
+
+    /**
+     * Returns the class path, section by section in list order. Call once it is {@link #seal sealed}.
+     */
+    public URL[] build() {
+        final List<URL> urls = new ArrayList<>();
+        for (final CompletableFuture<URL> slot : this.slots()) {
+            final URL url = slot.getNow(null);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    /**
+     * Returns the class path in the same order as {@link #build()}, with the slots not yet set still pending. A slot
+     * completes with {@code null} if it ends up not being part of the class path. URLs for unlisted paths are only
+     * included if they were set before this is called.
+     */
+    public List<CompletableFuture<URL>> slots() {
+        final List<CompletableFuture<URL>> slots = new ArrayList<>();
+        for (final Section section : this.sections.values()) {
+            slots.addAll(Arrays.asList(section.slots));
+            for (final URL url : section.unlisted.values()) {
+                slots.add(CompletableFuture.completedFuture(url));
+            }
+        }
+        return slots;
+    }
+
+    private Section section(final String location) {
+        final Section section = this.sections.get(location);
+        if (section == null) {
+            throw new IllegalStateException("No class path list for " + location);
+        }
+        return section;
+    }
+
+    private static final class Section {
+        private final FileEntry[] entries;
+        private final Map<String, Integer> index;
+        private final CompletableFuture<URL>[] slots;
+        // Patched files that are not in the list go after it, sorted by path so their order is stable as well
+        private final Map<String, URL> unlisted = new ConcurrentSkipListMap<>();
+
+        private Section(final FileEntry[] entries) {
+            this.entries = entries;
+            this.index = new HashMap<>(entries.length * 2);
+            for (int i = 0; i < entries.length; i++) {
+                this.index.putIfAbsent(entries[i].path(), i);
+            }
+            @SuppressWarnings({"unchecked", "rawtypes"}) final CompletableFuture<URL>[] slots = new CompletableFuture[entries.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new CompletableFuture<>();
+            }
+            this.slots = slots;
+        }
+    }
+}
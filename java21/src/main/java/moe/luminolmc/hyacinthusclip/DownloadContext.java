@@ -1,17 +1,15 @@
 package moe.luminolmc.hyacinthusclip;
 
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
+import moe.luminolmc.hyacinthusclip.verify.VerifyingOutputStream;
+
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
-import static java.nio.file.StandardOpenOption.*;
-
 public record DownloadContext(byte[] hash, URL url, String fileName) {
 
     public Path getOutputFile(final Path outputDir) {
@@ -41,26 +39,28 @@ public record DownloadContext(byte[] hash, URL url, String fileName) {
         if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.hash)) {
             return;
         }
+        if (PartialFiles.reuse(outputFile, this.hash)) {
+            return;
+        }
 
         if (!Files.isDirectory(outputFile.getParent())) {
             Files.createDirectories(outputFile.getParent());
         }
-        Files.deleteIfExists(outputFile);
 
         Hyacinthusclip.logger.info("Downloading {}", this.fileName);
 
-        try (
-                final ReadableByteChannel source = Channels.newChannel(this.url.openStream());
-                final FileChannel fileChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            fileChannel.transferFrom(source, 0, Long.MAX_VALUE);
+        final boolean valid;
+        try {
+            // Hashed as it is written and only moved into place once it matches
+            valid = VerifyingOutputStream.copy(this.url.openStream(), outputFile, this.hash);
         } catch (final IOException e) {
             Hyacinthusclip.logger.error(e, "Failed to download {}", this.fileName);
             e.printStackTrace();
             System.exit(1);
+            return;
         }
 
-        if (!Util.isFileValid(outputFile, this.hash)) {
+        if (!valid) {
             throw new IllegalStateException("Hash check failed for downloaded file " + this.fileName);
         }
     }
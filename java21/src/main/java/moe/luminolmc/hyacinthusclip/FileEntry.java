@@ -6,11 +6,9 @@ import org.jetbrains.annotations.NotNull;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 public record FileEntry(byte[] hash, String id, String path) {
@@ -45,10 +43,10 @@ public record FileEntry(byte[] hash, String id, String path) {
     }
 
     public CompletableFuture<Void> downloadFromMvnRepo(
-            final Map<String, URL> urls,
+            final ClasspathBuilder classpath,
             final PatchEntry @NotNull [] patches,
             final String targetName,
-            final Path originalRootDir,
+            final CompletableFuture<Path> originalRootDir,
             final String baseDir,
             final Path outputDir
     ) throws IOException {
@@ -61,7 +59,7 @@ public record FileEntry(byte[] hash, String id, String path) {
 
         final Path outputFile = outputDir.resolve(this.path);
         if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.hash)) {
-            urls.put(this.path, outputFile.toUri().toURL());
+            classpath.set(targetName, this.path, outputFile.toUri().toURL());
             return CompletableFuture.completedFuture(null);
         }
 
@@ -70,12 +68,10 @@ public record FileEntry(byte[] hash, String id, String path) {
         final @NotNull CompletableFuture<Path> task = new Downloader(this, outputDir, outputFile, baseDir, originalRootDir, true).downloadOrLoad(Hyacinthusclip.DOWNLOAD_EXECUTOR);
 
         return task.thenAccept(ret -> {
-            synchronized (urls) {
-                try {
-                    urls.put(this.path, ret.toUri().toURL());
-                } catch (MalformedURLException e) {
-                    throw new RuntimeException(e);
-                }
+            try {
+                classpath.set(targetName, this.path, ret.toUri().toURL());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
             }
         });
     }
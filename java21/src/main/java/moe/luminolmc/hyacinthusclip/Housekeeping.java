@@ -0,0 +1,167 @@
+package moe.luminolmc.hyacinthusclip;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work the launch does not depend on, such as cleaning up old files and recording what was set up. Tasks are queued
+ * while the launch runs and only executed, in the order they were queued, on a low-priority daemon thread once the
+ * server has been started.
+ * <p>
+ * A shutdown hook waits up to {@code hyacinthusclip.housekeepingTimeout} seconds (10 by default) for the queue to
+ * drain, so a server that stops right away still gets its housekeeping done. Every task has to be safe to skip: a
+ * task that does not get to run is simply done by a later launch.
+ */
+public final class Housekeeping {
+    private static final Object LOCK = new Object();
+    private static final Deque<Task> queue = new ArrayDeque<>();
+    private static boolean started;
+    private static boolean running;
+    private static boolean retired;
+    private static Thread shutdownHook;
+
+    private Housekeeping() {
+    }
+
+    public static void defer(final String name, final Runnable action) {
+        synchronized (LOCK) {
+            if (!retired) {
+                queue.add(new Task(name, action, false));
+                LOCK.notifyAll();
+                return;
+            }
+        }
+        run(new Task(name, action, false));
+    }
+
+    /**
+     * Queues {@code release} as the last task. Once it ran, the worker thread ends and the shutdown hook is removed, so
+     * neither keeps the launcher loaded; tasks queued later run right away on the thread queueing them.
+     */
+    public static void retire(final Runnable release) {
+        synchronized (LOCK) {
+            queue.add(new Task("release", release, true));
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Starts working through the queue. Call once the server runs.
+     */
+    public static void start() {
+        synchronized (LOCK) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+
+        final Thread worker = new Thread(Housekeeping::work, "Hyacinthusclip-Housekeeping");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+
+        final long timeout = Math.max(0, Long.getLong("hyacinthusclip.housekeepingTimeout", 10));
+        final Thread hook = new Thread(() -> {
+            if (!awaitIdle(TimeUnit.SECONDS.toNanos(timeout))) {
+                Hyacinthusclip.logger.warn("Skipping {} housekeeping tasks left at shutdown", pending());
+            }
+        }, "Hyacinthusclip-Housekeeping-Shutdown");
+        synchronized (LOCK) {
+            shutdownHook = hook;
+        }
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Runs everything queued so far and waits for it, for launches that exit instead of starting the server.
+     */
+    public static void flush() {
+        start();
+        awaitIdle(Long.MAX_VALUE);
+    }
+
+    private static void work() {
+        while (true) {
+            final Task task;
+            synchronized (LOCK) {
+                while (queue.isEmpty()) {
+                    try {
+                        LOCK.wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                task = queue.poll();
+                running = true;
+            }
+
+            run(task);
+            synchronized (LOCK) {
+                running = false;
+                if (task.last()) {
+                    retired = true;
+                    removeShutdownHook();
+                }
+                LOCK.notifyAll();
+                // Tasks queued while the release ran are still run, the worker ends once they are done
+                if (retired && queue.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void run(final Task task) {
+        try {
+            task.action().run();
+        } catch (final RuntimeException e) {
+            Hyacinthusclip.logger.warn("Housekeeping task {} failed: {}", task.name(), e.getMessage());
+        }
+    }
+
+    private static void removeShutdownHook() {
+        if (shutdownHook == null) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (final IllegalStateException e) {
+            // Already shutting down, the hook is running
+        }
+        shutdownHook = null;
+    }
+
+    /**
+     * Waits until the queue is empty and no task is running, returning false if that takes longer than
+     * {@code timeoutNanos}.
+     */
+    private static boolean awaitIdle(final long timeoutNanos) {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (LOCK) {
+            while (!queue.isEmpty() || running) {
+                final long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(LOCK, remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int pending() {
+        synchronized (LOCK) {
+            return queue.size() + (running ? 1 : 0);
+        }
+    }
+
+    private record Task(String name, Runnable action, boolean last) {
+    }
+}
@@ -1,6 +1,20 @@
 package moe.luminolmc.hyacinthusclip;
 
+import moe.luminolmc.hyacinthusclip.downloader.MirrorProbe;
+import moe.luminolmc.hyacinthusclip.image.LaunchImage;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlayClassLoader;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlays;
+import moe.luminolmc.hyacinthusclip.patch.ParallelBZip2InputStream;
+import moe.luminolmc.hyacinthusclip.patch.PatchScheduler;
+import moe.luminolmc.hyacinthusclip.supervisor.Supervisor;
 import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
+import moe.luminolmc.hyacinthusclip.update.CoreStaging;
+import moe.luminolmc.hyacinthusclip.update.InstallSlots;
+import moe.luminolmc.hyacinthusclip.verify.Durability;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.LaunchFingerprint;
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
+import moe.luminolmc.hyacinthusclip.verify.StampManifest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.leavesmc.leavesclip.logger.Logger;
@@ -22,17 +36,21 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public final class Hyacinthusclip {
@@ -43,46 +61,93 @@ public final class Hyacinthusclip {
             "https://repo.menthamc.org/repository/maven-public",
             "https://repo.spongepowered.org/maven",
     };
-    public static final Executor DOWNLOAD_EXECUTOR = Executors.newCachedThreadPool();
+    public static final ExecutorService DOWNLOAD_EXECUTOR = Executors.newCachedThreadPool();
 
     public static final Logger logger = new SimpleLogger("Hyacinthusclip");
 
+    // Set when the server is launched before all libraries are ready
+    private static List<CompletableFuture<URL>> lazyClasspath;
+    // Completes once the class path is complete and recorded
+    private static CompletableFuture<?> setupDone = CompletableFuture.completedFuture(null);
+    private static StartupGraph startupGraph;
+
     public static void main(final String[] args) {
         if (Path.of("").toAbsolutePath().toString().contains("!")) {
             System.err.println("Hyacinthusclip may not run in a directory containing '!'. Please rename the affected folder.");
             System.exit(1);
         }
 
-        if (!Boolean.getBoolean("hyacinthusclip.disable.auto-update")
-                && !Boolean.getBoolean("leavesclip.disable.auto-update")) {
-            AutoUpdate.init();
-        }
+        final boolean autoUpdate = !Boolean.getBoolean("hyacinthusclip.disable.auto-update")
+                && !Boolean.getBoolean("leavesclip.disable.auto-update");
+
+        final StartupGraph graph = new StartupGraph();
+        startupGraph = graph;
+        final StartupGraph.Node<Void> autoUpdateInit = graph.node("auto-update", () -> {
+            if (autoUpdate) {
+                AutoUpdate.init();
+            }
+            return null;
+        });
+        // Plugin mixins do not depend on the class path, they are scanned while it is set up
+        final StartupGraph.Node<Void> mixinScan = ENABLE_LEAVES_PLUGIN ? graph.node("mixin-scan", () -> {
+            PluginResolver.extractMixins();
+            MixinJarResolver.resolveMixinJars();
+            return null;
+        }) : null;
 
-        final URL[] setupClasspathUrls = setupClasspath();
+        autoUpdateInit.join();
+        final URL[] setupClasspathUrls = setupClasspath(graph);
         final String mainClassName = findMainClass();
-        final ClassLoader classLoader = getClassLoaderForLaunch(setupClasspathUrls);
+        if (Supervisor.isEnabled()) {
+            if (ENABLE_LEAVES_PLUGIN || !EntryOverlays.isEmpty()) {
+                // The child would be started without the mixin environment or the entry overlays
+                throw new IllegalStateException("Supervisor mode needs a plain class path, run without "
+                        + "hyacinthusclip.supervisor to use plugin mixins or entry patches");
+            }
+            // Built before housekeeping starts, so the deferred commit covers the image
+            final URL[] supervisedUrls = LaunchImage.isEnabled() ? LaunchImage.flatten(setupClasspathUrls, getRepoDir()) : setupClasspathUrls;
+            graph.report();
+            Housekeeping.start();
+            // The supervisor outlives every server it starts, so it stages the next core jar
+            if (autoUpdate && CoreStaging.isEnabled()) {
+                CoreStaging.start();
+            }
+            Supervisor.run(getRepoDir(), supervisedUrls, mainClassName, args);
+        }
+        final ClassLoader classLoader = getClassLoaderForLaunch(setupClasspathUrls, mixinScan);
+        if (ClassLoadProfile.isEnabled()) {
+            ClassLoadProfile.start(getRepoDir(), classLoader, ENABLE_LEAVES_PLUGIN);
+        }
+        graph.report();
 
 
         logger.info("Calling main method in server main class: " + mainClassName);
         final Thread runThread = generateThread(args, mainClassName, classLoader);
 
         runThread.start();
+        Housekeeping.start();
+
+        if (autoUpdate && CoreStaging.isEnabled()) {
+            CoreStaging.start();
+        }
     }
 
-    private static @NotNull ClassLoader getClassLoaderForLaunch(URL[] setupClasspathUrls) {
+    private static @NotNull ClassLoader getClassLoaderForLaunch(URL[] setupClasspathUrls, StartupGraph.Node<Void> mixinScan) {
         if (ENABLE_LEAVES_PLUGIN) {
             logger.info("Leaves plugin has been enabled. Bootstrapping with mixin environment.");
 
             BuildInfoInjector.inject();
             overrideAsmVersion();
-            PluginResolver.extractMixins();
-            MixinJarResolver.resolveMixinJars();
+            mixinScan.join();
 
             System.setProperty("mixin.bootstrapService", MixinServiceKnotBootstrap.class.getName());
             System.setProperty("mixin.service", MixinServiceKnot.class.getName());
 
-            final URL[] classpathUrls = Arrays.copyOf(setupClasspathUrls, setupClasspathUrls.length + MixinJarResolver.jarUrls.length);
+            URL[] classpathUrls = Arrays.copyOf(setupClasspathUrls, setupClasspathUrls.length + MixinJarResolver.jarUrls.length);
             System.arraycopy(MixinJarResolver.jarUrls, 0, classpathUrls, setupClasspathUrls.length, MixinJarResolver.jarUrls.length);
+            if (LaunchImage.isEnabled()) {
+                classpathUrls = LaunchImage.flatten(classpathUrls, getRepoDir());
+            }
 
             final ClassLoader parentClassLoader = Hyacinthusclip.class.getClassLoader();
             MixinServiceKnot.classLoader = Hyacinthusclip.class.getClassLoader();
@@ -112,7 +177,15 @@ public final class Hyacinthusclip {
 
             return createdClassLoader;
         } else {
-            return new URLClassLoader(setupClasspathUrls, Hyacinthusclip.class.getClassLoader().getParent());
+            if (lazyClasspath != null) {
+                return new LazyClasspathClassLoader(lazyClasspath, Hyacinthusclip.class.getClassLoader().getParent());
+            }
+            final URL[] classpathUrls = LaunchImage.isEnabled() ? LaunchImage.flatten(setupClasspathUrls, getRepoDir()) : setupClasspathUrls;
+            // The overlay loader is a plain URLClassLoader without overlays, but also reports what it loads
+            if (!EntryOverlays.isEmpty() || ClassLoadProfile.isEnabled()) {
+                return new EntryOverlayClassLoader(classpathUrls, Hyacinthusclip.class.getClassLoader().getParent());
+            }
+            return new URLClassLoader(classpathUrls, Hyacinthusclip.class.getClassLoader().getParent());
         }
     }
 
@@ -134,56 +207,192 @@ public final class Hyacinthusclip {
         return runThread;
     }
 
-    private static URL @NotNull [] setupClasspath() {
-        final var repoDir = Path.of(System.getProperty("bundlerRepoDir", ""));
-        final boolean onlyUseMojangSource = Boolean.getBoolean("hyacinthusclip.useMojangSource");
+    private static Path getRepoDir() {
+        final Path repoDir = Path.of(System.getProperty("bundlerRepoDir", ""));
+        return InstallSlots.isEnabled() ? InstallSlots.repoDir(repoDir) : repoDir;
+    }
 
-        final PatchEntry[] patches = findPatches();
-        final Path baseFile;
-        if (onlyUseMojangSource) {
-            baseFile = getDownloadContextFromMojang(repoDir).getOutputFile(repoDir);
+    private static URL @NotNull [] setupClasspath(final StartupGraph graph) {
+        final var repoDir = getRepoDir();
+        Durability.open(repoDir);
+        final StampManifest stamps = StampManifest.open(repoDir);
+        CoreStaging.adopt(repoDir, stamps);
+        InstallSlots.seed(repoDir, stamps);
+
+        // Warm boot: nothing changed since the last launch, reuse its class path as is
+        URL[] urls = LaunchFingerprint.match(repoDir, stamps);
+        if (urls != null) {
+            deferCommit(repoDir, stamps, null);
         } else {
-            DownloadContext downloadContext = findDownloadContext(false);
-            if (patches.length > 0 && downloadContext == null) {
-                throw new IllegalArgumentException("patches.list file found without a corresponding original-url file");
-            }
-
-            if (downloadContext != null) {
-                try {
-                    downloadContext.download(repoDir);
-                } catch (final IOException e) {
-                    System.out.println("Failed to download jar with auto matched download context! Trying using default download context");
-                    downloadContext = getDownloadContextFromMojang(repoDir);
-                }
-                baseFile = downloadContext.getOutputFile(repoDir);
+            final ClasspathBuilder classpath = resolveClasspath(repoDir, graph, isLazyLibraries());
+            if (classpath.sealed().isDone()) {
+                urls = classpath.build();
+                deferCommit(repoDir, stamps, urls);
             } else {
-                baseFile = null;
+                // Nothing is recorded as set up until the last library is there
+                lazyClasspath = classpath.slots();
+                setupDone = classpath.sealed().whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.error("Failed to set up libraries", error);
+                    } else {
+                        logger.info("All libraries are ready");
+                        deferCommit(repoDir, stamps, classpath.build());
+                    }
+                });
             }
         }
 
-        final Map<String, Map<String, URL>> classpathUrls = extractAndApplyPatches(baseFile, patches, repoDir);
-
         // Exit if user has set `paperclip.patchonly` or `hyacinthusclip.patchonly` system property to `true`
-        if (Boolean.getBoolean("paperclip.patchonly")
-                || Boolean.getBoolean("hyacinthusclip.patchonly")) {
+        if (isPatchOnly()) {
+            Housekeeping.flush();
+            graph.report();
             System.exit(0);
         }
 
+        // The launch class loader takes the lazy class path instead
+        return urls != null ? urls : new URL[0];
+    }
+
+    /**
+     * Called by the bootstrap once {@link #main} returned, if it loaded the launcher in a class loader of its own. As
+     * soon as the class path is complete and the deferred housekeeping has run, the pools, threads and open jars of
+     * the launcher are released, so nothing keeps its classes loaded while the server runs.
+     */
+    public static void handoff() {
+        setupDone.whenComplete((ignored, error) -> Housekeeping.retire(Hyacinthusclip::release));
+    }
+
+    private static void release() {
+        startupGraph.close();
+        DOWNLOAD_EXECUTOR.shutdown();
+        Hashing.shutdown();
+        ParallelBZip2InputStream.shutdown();
+        MirrorProbe.shutdown();
+        AutoUpdate.release();
+        logger.info("Launcher handed off, its resources are released");
+    }
+
+    /**
+     * Records that the repo dir is set up, once the server runs. {@code resolvedUrls} is the class path if it was
+     * resolved by this launch.
+     */
+    private static void deferCommit(final Path repoDir, final StampManifest stamps, final URL[] resolvedUrls) {
+        Housekeeping.defer("commit-classpath", () -> commitClasspath(repoDir, stamps, resolvedUrls));
+    }
+
+    private static void commitClasspath(final Path repoDir, final StampManifest stamps, final URL[] resolvedUrls) {
+        if (resolvedUrls != null) {
+            LaunchFingerprint.write(repoDir, resolvedUrls);
+
+            // Partial files the launch could not reuse are leftovers of an interrupted write
+            for (final String dir : new String[]{"cache", "versions", "libraries"}) {
+                PartialFiles.sweep(repoDir.resolve(dir));
+            }
+        }
+        stamps.save();
+        InstallSlots.activate();
+        Durability.commit();
+    }
+
+    private static boolean isPatchOnly() {
+        return Boolean.getBoolean("paperclip.patchonly") || Boolean.getBoolean("hyacinthusclip.patchonly");
+    }
+
+    /**
+     * With {@code hyacinthusclip.lazyLibraries}, the server is started once the versions are patched and libraries
+     * still downloading are added to the class path as they arrive. Only the plain launch class loader supports it.
+     */
+    private static boolean isLazyLibraries() {
+        return Boolean.getBoolean("hyacinthusclip.lazyLibraries") && !ENABLE_LEAVES_PLUGIN && !LaunchImage.isEnabled() && !isPatchOnly()
+                && !Supervisor.isEnabled();
+    }
+
+    /**
+     * Resolves the class path as a {@link StartupGraph}. Libraries and versions are extracted while the original jar is
+     * downloaded, since they only fall back to it for entries missing from the launcher jar, and patching starts as
+     * soon as the original jar is there. If {@code lazy}, this returns before the libraries are done, the returned class
+     * path is {@link ClasspathBuilder#sealed() sealed} once they are.
+     */
+    private static @NotNull ClasspathBuilder resolveClasspath(final Path repoDir, final StartupGraph graph, final boolean lazy) {
+        final boolean onlyUseMojangSource = Boolean.getBoolean("hyacinthusclip.useMojangSource");
+
+        final StartupGraph.Node<PatchEntry[]> patchList = graph.node("patch-list", Hyacinthusclip::findPatches);
+        // Includes probing the mirrors unless a recent ranking is cached
+        final StartupGraph.Node<DownloadContext> context = graph.node("download-context",
+                () -> onlyUseMojangSource ? null : findDownloadContext(false, repoDir));
+        final StartupGraph.Node<Path> originalJar = graph.node("original-jar", () -> {
+            if (onlyUseMojangSource) {
+                return getDownloadContextFromMojang(repoDir).getOutputFile(repoDir);
+            }
+
+            DownloadContext downloadContext = context.join();
+            if (patchList.join().length > 0 && downloadContext == null) {
+                throw new IllegalArgumentException("patches.list file found without a corresponding original-url file");
+            }
+            if (downloadContext == null) {
+                return null;
+            }
+
+            try {
+                downloadContext.download(repoDir);
+            } catch (final IOException e) {
+                System.out.println("Failed to download jar with auto matched download context! Trying using default download context");
+                downloadContext = getDownloadContextFromMojang(repoDir);
+            }
+            return downloadContext.getOutputFile(repoDir);
+        }, patchList, context);
+        final StartupGraph.Node<FileSystem> originalFs = graph.node("original-fs", () -> {
+            final Path jar = originalJar.join();
+            try {
+                return jar == null ? null : FileSystems.newFileSystem(jar);
+            } catch (final IOException e) {
+                throw Util.fail("Failed to open original jar " + jar, e);
+            }
+        }, originalJar);
+        final CompletableFuture<Path> originalRootDir = originalFs.future().thenApply(fs -> fs == null ? null : fs.getPath("/"));
+
         // Keep versions and libraries separate as the versions must come first
         // This is due to change we make to some library classes inside the versions jar
-        final Collection<URL> versionUrls = classpathUrls.get("versions").values();
-        final Collection<URL> libraryUrls = classpathUrls.get("libraries").values();
-
-        final URL[] emptyArray = new URL[0];
-        final URL[] urls = new URL[versionUrls.size() + libraryUrls.size()];
-        System.arraycopy(versionUrls.toArray(emptyArray), 0, urls, 0, versionUrls.size());
-        System.arraycopy(libraryUrls.toArray(emptyArray), 0, urls, versionUrls.size(), libraryUrls.size());
-        return urls;
+        final StartupGraph.Node<ClasspathBuilder> fileLists = graph.node("file-lists", () -> new ClasspathBuilder()
+                .add("versions", findVersionEntries())
+                .add("libraries", findLibraryEntries()));
+
+        final StartupGraph.Node<Void> versions = graph.node("versions", () -> {
+            extractEntries(fileLists.join(), patchList.join(), originalRootDir, repoDir, "versions");
+            return null;
+        }, patchList, fileLists);
+        final StartupGraph.Node<Void> libraries = graph.node("libraries", () -> {
+            final FileEntry[] libraryEntries = fileLists.join().entries("libraries");
+            if (libraryEntries.length > 0) {
+                // Any library is on every repository, which makes it a fair probe
+                MirrorProbe.configureMaven(repoDir, libraryEntries[0].path());
+            }
+            extractEntries(fileLists.join(), patchList.join(), originalRootDir, repoDir, "libraries");
+            return null;
+        }, patchList, fileLists);
+        final StartupGraph.Node<Void> patching = graph.node("patches", () -> {
+            applyPatches(fileLists.join(), patchList.join(), originalRootDir.join(), repoDir);
+            return null;
+        }, patchList, fileLists, originalFs);
+
+        CompletableFuture.allOf(versions.future(), libraries.future(), patching.future()).whenComplete((ignored, error) -> {
+            closeOriginalFs(originalFs);
+            final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            fileLists.future().thenAccept(classpath -> classpath.seal(cause));
+        });
+
+        if (lazy) {
+            graph.awaitAll(versions, patching);
+            return fileLists.join();
+        }
+        graph.awaitAll(versions, libraries, patching);
+        fileLists.join().sealed().join();
+        return fileLists.join();
     }
 
     private static @NotNull DownloadContext getDownloadContextFromMojang(Path repoDir) {
         DownloadContext downloadContext;
-        downloadContext = findDownloadContext(true);
+        downloadContext = findDownloadContext(true, repoDir);
 
         if (downloadContext == null) {
             throw new IllegalStateException("Default download context not found!");
@@ -222,7 +431,7 @@ public final class Hyacinthusclip {
         }
     }
 
-    private static @NotNull String getDownloadContextFileName(boolean ignoreCountry) {
+    private static @NotNull String getDownloadContextFileName(boolean ignoreCountry, Path repoDir) {
         final String base = "download-context";
         final String customized = System.getProperty("hyacinthusclip.downloadContext");
 
@@ -240,21 +449,28 @@ public final class Hyacinthusclip {
             return customized;
         }
 
-        // fetch location and determine which to use
-        final String country = IPUtil.getCountryByIp();
-        if (country.equalsIgnoreCase("China")
-                || country.equalsIgnoreCase("CN")
-                || country.equalsIgnoreCase("PRC")) {
-            return base + "-cn";
+        // use whichever mirror is fastest from here
+        final Map<String, URI> candidates = new LinkedHashMap<>();
+        for (final String name : new String[]{base, base + "-cn"}) {
+            try {
+                final DownloadContext context = DownloadContext.parseLine(Util.readResourceText("/META-INF/" + name));
+                if (context != null) {
+                    candidates.put(name, context.url().toURI());
+                }
+            } catch (final IOException | URISyntaxException | IllegalStateException e) {
+                logger.warn("Ignoring unreadable download context {}: {}", name, e.getMessage());
+            }
         }
-
-        return base;
+        if (candidates.isEmpty()) {
+            return base;
+        }
+        return MirrorProbe.rank(repoDir, "download-context", candidates).get(0);
     }
 
-    private static DownloadContext findDownloadContext(boolean ignoreCountry) {
+    private static DownloadContext findDownloadContext(boolean ignoreCountry, Path repoDir) {
         String line;
         try {
-            line = Util.readResourceText("/META-INF/" + getDownloadContextFileName(ignoreCountry));
+            line = Util.readResourceText("/META-INF/" + getDownloadContextFileName(ignoreCountry, repoDir));
         } catch (final IOException e) {
             // direct throw if ignoreCountry is true
             if (ignoreCountry) {
@@ -262,7 +478,7 @@ public final class Hyacinthusclip {
             }
             // other download source does not found
             try {
-                line = Util.readResourceText("/META-INF/" + getDownloadContextFileName(true));
+                line = Util.readResourceText("/META-INF/" + getDownloadContextFileName(true, repoDir));
             } catch (IOException e1) {
                 throw Util.fail("Failed to read download-context file", e1);
             }
@@ -305,103 +521,58 @@ public final class Hyacinthusclip {
         }
     }
 
-    private static @NotNull Map<String, Map<String, URL>> extractAndApplyPatches(final Path originalJar, final PatchEntry[] patches, final Path repoDir) {
-        if (originalJar == null && patches.length > 0) {
-            throw new IllegalArgumentException("Patch data found without patch target");
+    private static void closeOriginalFs(final StartupGraph.Node<FileSystem> originalFs) {
+        final FileSystem fs = originalFs.future().exceptionally(error -> null).getNow(null);
+        if (fs == null) {
+            return;
         }
-
-        // First extract any non-patch files
-        final Map<String, Map<String, URL>> urls = extractFiles(patches, originalJar, repoDir);
-
-        // Next apply any patches that we have
-        applyPatches(urls, patches, originalJar, repoDir);
-
-        return urls;
-    }
-
-    private static @NotNull Map<String, Map<String, URL>> extractFiles(final PatchEntry[] patches, final Path originalJar, final Path repoDir) {
-        final var urls = new HashMap<String, Map<String, URL>>();
-
         try {
-            final FileSystem originalJarFs;
-            if (originalJar == null) {
-                originalJarFs = null;
-            } else {
-                originalJarFs = FileSystems.newFileSystem(originalJar);
-            }
-
-            try {
-                final Path originalRootDir;
-                if (originalJarFs == null) {
-                    originalRootDir = null;
-                } else {
-                    originalRootDir = originalJarFs.getPath("/");
-                }
-
-                final var versionsMap = new HashMap<String, URL>();
-                urls.putIfAbsent("versions", versionsMap);
-                final FileEntry[] versionEntries = findVersionEntries();
-                extractEntries(versionsMap, patches, originalRootDir, repoDir, versionEntries, "versions");
-
-                final FileEntry[] libraryEntries = findLibraryEntries();
-                final var librariesMap = new HashMap<String, URL>();
-                urls.putIfAbsent("libraries", librariesMap);
-                extractEntries(librariesMap, patches, originalRootDir, repoDir, libraryEntries, "libraries");
-            } finally {
-                if (originalJarFs != null) {
-                    originalJarFs.close();
-                }
-            }
+            fs.close();
         } catch (final IOException e) {
-            throw Util.fail("Failed to extract jar files", e);
+            logger.warn("Failed to close original jar: {}", e.getMessage());
         }
-
-        return urls;
     }
 
     private static void extractEntries(
-            final Map<String, URL> urls,
+            final ClasspathBuilder classpath,
             final PatchEntry[] patches,
-            final Path originalRootDir,
+            final CompletableFuture<Path> originalRootDir,
             final Path repoDir,
-            final FileEntry[] entries,
             final String targetName
-    ) throws IOException {
-        if (entries == null) {
-            return;
-        }
-
+    ) {
+        final FileEntry[] entries = classpath.entries(targetName);
         final String targetPath = "/META-INF/" + targetName;
         final Path targetDir = repoDir.resolve(targetName);
 
-        CompletableFuture.allOf(Arrays.stream(entries).map(entry -> {
+        // Existing files are verified on the bounded hashing pool, only missing ones move on to the download executor
+        CompletableFuture.allOf(Arrays.stream(entries).map(entry -> CompletableFuture.supplyAsync(() -> {
             try {
-                return entry.downloadFromMvnRepo(urls, patches, targetName, originalRootDir, targetPath, targetDir);
+                return entry.downloadFromMvnRepo(classpath, patches, targetName, originalRootDir, targetPath, targetDir);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }).toArray(CompletableFuture[]::new)).join();
+        }, Hashing.executor()).thenCompose(download -> download)).toArray(CompletableFuture[]::new)).join();
     }
 
     private static void applyPatches(
-            final Map<String, Map<String, URL>> urls,
+            final ClasspathBuilder classpath,
             final PatchEntry @NotNull [] patches,
-            final Path originalJar,
+            final Path originalRootDir,
             final Path repoDir
     ) {
         if (patches.length == 0) {
             return;
         }
-        if (originalJar == null) {
-            throw new IllegalStateException("Patches provided without patch target");
+        if (originalRootDir == null) {
+            throw new IllegalArgumentException("Patch data found without patch target");
         }
 
-        try (final FileSystem originalFs = FileSystems.newFileSystem(originalJar)) {
-            final Path originalRootDir = originalFs.getPath("/");
-
+        try {
+            final List<PatchScheduler.Job> jobs = new ArrayList<>(patches.length);
             for (final PatchEntry patch : patches) {
-                patch.applyPatch(urls, originalRootDir, repoDir);
+                jobs.add(patch.toJob(classpath, originalRootDir, repoDir));
             }
+            PatchScheduler.fromSystemProperties().runAll(jobs);
         } catch (final IOException e) {
             throw Util.fail("Failed to apply patches", e);
         }
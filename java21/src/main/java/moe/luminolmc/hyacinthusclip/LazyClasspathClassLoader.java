@@ -0,0 +1,172 @@
+package moe.luminolmc.hyacinthusclip;
+
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlayClassLoader;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Launch class loader for a class path whose libraries are still being downloaded, so the server can start before all
+ * of them are there.
+ * <p>
+ * Jars join the class path in list order, each as soon as it and every jar before it are ready. A lookup the ready part
+ * cannot answer checks the ready jars past the first pending one: if one of them has the entry, the lookup waits only
+ * for the pending jars before it, otherwise for all of them. Either way it resolves exactly as it would on the complete
+ * class path. A class that is on no jar at all therefore waits for every download to finish.
+ */
+public final class LazyClasspathClassLoader extends EntryOverlayClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final List<CompletableFuture<URL>> entries;
+    // One loader per ready jar past the first pending one, only used to see whether that jar has an entry
+    private final Map<Integer, URLClassLoader> probes = new HashMap<>();
+    private volatile int ready;
+    private volatile Throwable failure;
+
+    public LazyClasspathClassLoader(final List<CompletableFuture<URL>> entries, final ClassLoader parent) {
+        super(new URL[0], parent);
+        this.entries = List.copyOf(entries);
+        this.advance();
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final String path = name.replace('.', '/') + ".class";
+        while (true) {
+            try {
+                return super.findClass(name);
+            } catch (final ClassNotFoundException e) {
+                try {
+                    if (!this.awaitEntry(path)) {
+                        throw e;
+                    }
+                } catch (final IOException failed) {
+                    throw new ClassNotFoundException(name, failed);
+                }
+            }
+        }
+    }
+
+    @Override
+    public URL findResource(final String name) {
+        while (true) {
+            final URL url = super.findResource(name);
+            if (url != null) {
+                return url;
+            }
+            try {
+                if (!this.awaitEntry(name)) {
+                    return null;
+                }
+            } catch (final IOException e) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public Enumeration<URL> findResources(final String name) throws IOException {
+        this.awaitUntil(this.entries.size());
+        return super.findResources(name);
+    }
+
+    /**
+     * Waits for the jars that decide where {@code name} resolves to. Returns false if the class path is complete, so
+     * looking again would not change anything.
+     */
+    private boolean awaitEntry(final String name) throws IOException {
+        if (this.ready == this.entries.size()) {
+            this.checkFailure();
+            return false;
+        }
+
+        int until = this.entries.size();
+        synchronized (this.probes) {
+            for (int i = this.ready + 1; i < this.entries.size(); i++) {
+                final URL url = this.entries.get(i).exceptionally(error -> null).getNow(null);
+                if (url != null && this.probe(i, url).findResource(name) != null) {
+                    until = i;
+                    break;
+                }
+            }
+        }
+        this.awaitUntil(until);
+        return true;
+    }
+
+    private URLClassLoader probe(final int index, final URL url) {
+        return this.probes.computeIfAbsent(index, ignored -> new URLClassLoader(new URL[]{url}, null));
+    }
+
+    private void awaitUntil(final int until) throws IOException {
+        for (int i = this.ready; i < until; i++) {
+            try {
+                this.entries.get(i).join();
+            } catch (final CompletionException e) {
+                // Reported below, every lookup past a failed jar fails with it
+            }
+        }
+        this.advance();
+        this.checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IOException("A class path entry could not be set up", failure);
+        }
+    }
+
+    private void advance() {
+        synchronized (this.probes) {
+            int ready = this.ready;
+            while (ready < this.entries.size() && this.failure == null && this.entries.get(ready).isDone()) {
+                try {
+                    final URL url = this.entries.get(ready).join();
+                    if (url != null) {
+                        this.addURL(url);
+                    }
+                    ready++;
+                } catch (final CompletionException e) {
+                    this.failure = e.getCause() != null ? e.getCause() : e;
+                }
+            }
+            this.ready = ready;
+
+            final Iterator<Map.Entry<Integer, URLClassLoader>> probes = this.probes.entrySet().iterator();
+            while (probes.hasNext()) {
+                final Map.Entry<Integer, URLClassLoader> probe = probes.next();
+                if (probe.getKey() < ready) {
+                    closeQuietly(probe.getValue());
+                    probes.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.probes) {
+            this.probes.values().forEach(LazyClasspathClassLoader::closeQuietly);
+            this.probes.clear();
+        }
+        super.close();
+    }
+
+    private static void closeQuietly(final URLClassLoader loader) {
+        try {
+            loader.close();
+        } catch (final IOException ignored) {
+        }
+    }
+}
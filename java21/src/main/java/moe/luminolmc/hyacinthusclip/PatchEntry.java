@@ -9,19 +9,24 @@
 
 package moe.luminolmc.hyacinthusclip;
 
-import io.sigpipe.jbsdiff.InvalidHeaderException;
-import io.sigpipe.jbsdiff.Patch;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlay;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlays;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodecs;
+import moe.luminolmc.hyacinthusclip.patch.PatchScheduler;
+import moe.luminolmc.hyacinthusclip.patch.PatchSource;
+import moe.luminolmc.hyacinthusclip.patch.StreamingPatcher;
 import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
-import org.apache.commons.compress.compressors.CompressorException;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
+import moe.luminolmc.hyacinthusclip.verify.VerifyingOutputStream;
 
 import java.io.*;
-import java.net.URL;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.Map;
-
-import static java.nio.file.StandardOpenOption.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public record PatchEntry(
         String location,
@@ -30,9 +35,14 @@ public record PatchEntry(
         byte[] outputHash,
         String originalPath,
         String patchPath,
-        String outputPath
+        String outputPath,
+        String codec,
+        String mode
 ) {
-    private static boolean announced = false;
+    public static final String MODE_FILE = "file";
+    public static final String MODE_ENTRY = "entry";
+
+    private static final AtomicBoolean announced = new AtomicBoolean(false);
 
     public static PatchEntry[] parse(final BufferedReader reader) throws IOException {
         var result = new PatchEntry[8];
@@ -67,10 +77,20 @@ public record PatchEntry(
         }
 
         final var parts = line.split("\t");
-        if (parts.length != 7) {
+        if (parts.length < 7 || parts.length > 9) {
             throw new IllegalStateException("Invalid patch data line: " + line);
         }
 
+        // The codec column is optional, lists without it use jbsdiff's own format
+        final String codec = parts.length >= 8 ? parts[7] : PatchCodecs.DEFAULT_CODEC;
+        PatchCodecs.get(codec);
+
+        // So is the mode column, `entry` patches are an archive of per-entry deltas applied at class load time
+        final String mode = parts.length == 9 ? parts[8] : MODE_FILE;
+        if (!mode.equals(MODE_FILE) && !mode.equals(MODE_ENTRY)) {
+            throw new IllegalStateException("Unknown patch mode " + mode + " in line: " + line);
+        }
+
         return new PatchEntry(
                 parts[0],
                 Util.fromHex(parts[1]),
@@ -78,70 +98,186 @@ public record PatchEntry(
                 Util.fromHex(parts[3]),
                 parts[4],
                 parts[5],
-                parts[6]
+                parts[6],
+                codec,
+                mode
         );
     }
 
-    public void applyPatch(final Map<String, Map<String, URL>> urls, final Path originalRootDir, final Path repoDir) throws IOException {
+    public PatchScheduler.Job toJob(final ClasspathBuilder classpath, final Path originalRootDir, final Path repoDir) {
+        // Entry patches only copy the original jar, nothing is patched until classes are loaded
+        final long cost = this.isEntryMode() ? 0 : StreamingPatcher.footprint(PatchCodecs.get(this.codec));
+        // Checking an existing output may hash it, so that runs on the workers as well
+        return new PatchScheduler.Job(this.outputPath, cost, () -> this.applyPatch(classpath, originalRootDir, repoDir));
+    }
+
+    public void applyPatch(final ClasspathBuilder classpath, final Path originalRootDir, final Path repoDir) throws IOException {
         final Path inputDir = originalRootDir.resolve("META-INF").resolve(this.location);
         final Path targetDir = repoDir.resolve(this.location);
 
         final Path inputFile = inputDir.resolve(this.originalPath);
         final Path outputFile = targetDir.resolve(this.outputPath);
 
-        // Short-cut if the patch is already applied
-        if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.outputHash)) {
-            // For the classpath, use the patched file instead of the original
-            urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
+        if (this.isEntryMode()) {
+            this.prepareOverlay(classpath, inputFile, outputFile);
             return;
         }
 
-        if (!announced) {
-            Hyacinthusclip.logger.info("Applying patches");
-            announced = true;
+        // Short-cut if the patch is already applied
+        if (isPublished(outputFile, this.outputHash)) {
+            this.putUrl(classpath, outputFile);
+            return;
         }
+        this.writeOutput(classpath, originalRootDir, repoDir);
+    }
+
+    private void writeOutput(final ClasspathBuilder classpath, final Path originalRootDir, final Path repoDir) throws IOException {
+        final Path inputFile = originalRootDir.resolve("META-INF").resolve(this.location).resolve(this.originalPath);
+        final Path outputFile = repoDir.resolve(this.location).resolve(this.outputPath);
+
+        this.prepareOutput(outputFile);
 
         // Verify input file is correct
         if (Files.notExists(inputFile)) {
             throw new IllegalStateException("Input file not found: " + inputFile);
         }
-        if (!Util.isFileValid(inputFile, this.originalHash)) {
-            throw new IllegalStateException("Hash check of input file failed for " + inputFile);
-        }
+        final Path originalFile = this.localOriginal(inputFile, repoDir);
 
         // Get and verity patch data is correct
-        final String fullPatchPath = "/META-INF/" + Util.endingSlash(this.location) + this.patchPath;
-        final InputStream patchStream = AutoUpdate.getResourceAsStreamFromTargetJar(fullPatchPath);
-        if (patchStream == null) {
-            throw new IllegalStateException("Patch file not found: " + fullPatchPath);
-        }
-        final byte[] patchBytes = Util.readFully(patchStream);
-        if (!Util.isDataValid(patchBytes, this.patchHash)) {
-            throw new IllegalStateException("Hash check of patch file failed for " + fullPatchPath);
+        final PatchSource patchSource = this.patchSource();
+        if (!Hashing.matches(patchSource.open(), this.patchHash)) {
+            throw new IllegalStateException("Hash check of patch file failed for " + this.fullPatchPath());
         }
 
-        final byte[] originalBytes = Util.readBytes(inputFile);
+        boolean valid;
         try {
-            if (!Files.isDirectory(outputFile.getParent())) {
-                Files.createDirectories(outputFile.getParent());
+            final PatchCodec codec = PatchCodecs.get(this.codec);
+            try {
+                valid = this.writePatched(originalFile, patchSource, outputFile, codec);
+            } catch (final IOException e) {
+                if (codec.sequential() == codec) {
+                    throw e;
+                }
+                Hyacinthusclip.logger.warn("Parallel decoding of {} failed, retrying sequentially: {}", this.patchPath, e.getMessage());
+                valid = this.writePatched(originalFile, patchSource, outputFile, codec.sequential());
             }
-            try (
-                    final OutputStream outStream =
-                            new BufferedOutputStream(Files.newOutputStream(outputFile, CREATE, WRITE, TRUNCATE_EXISTING))
-            ) {
-                Patch.patch(originalBytes, patchBytes, outStream);
-            }
-        } catch (final InvalidHeaderException | IOException | CompressorException e) {
+        } catch (final IOException e) {
             // Don't move this `catch` clause to the outer try-with-resources
             // the Util.fail method never returns, so `close()` would never get called
             throw Util.fail("Failed to patch " + inputFile, e);
         }
 
-        if (!Util.isFileValid(outputFile, this.outputHash)) {
+        if (valid && !originalFile.equals(inputFile)) {
+            Files.deleteIfExists(originalFile);
+        }
+        if (!valid) {
             throw new IllegalStateException("Patch not applied correctly for " + this.outputPath);
         }
 
-        // For the classpath, use the patched file instead of the original
-        urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
+        this.putUrl(classpath, outputFile);
+    }
+
+    /**
+     * Sets up an entry patch: the original jar and the patch archive are copied next to where the patched jar would
+     * be, the original goes on the class path and an {@link EntryOverlay} patches the changed entries on demand.
+     * The output hash is not checked as the patched jar is never assembled; the original and patch hashes cover it.
+     */
+    private void prepareOverlay(final ClasspathBuilder classpath, final Path inputFile, final Path outputFile) throws IOException {
+        final Path baseFile = outputFile.resolveSibling(outputFile.getFileName() + ".base");
+        final Path archiveFile = outputFile.resolveSibling(outputFile.getFileName() + ".entries");
+
+        if (!isPublished(baseFile, this.originalHash)) {
+            if (Files.notExists(inputFile)) {
+                throw new IllegalStateException("Input file not found: " + inputFile);
+            }
+            this.prepareOutput(outputFile);
+            if (!VerifyingOutputStream.copy(Files.newInputStream(inputFile), baseFile, this.originalHash)) {
+                throw new IllegalStateException("Hash check of input file failed for " + inputFile);
+            }
+        }
+        if (!isPublished(archiveFile, this.patchHash)) {
+            this.prepareOutput(outputFile);
+            if (!VerifyingOutputStream.copy(this.patchSource().open(), archiveFile, this.patchHash)) {
+                throw new IllegalStateException("Hash check of patch file failed for " + this.fullPatchPath());
+            }
+        }
+
+        EntryOverlays.register(new EntryOverlay(baseFile, archiveFile, PatchCodecs.get(this.codec)));
+        this.putUrl(classpath, baseFile);
+    }
+
+    /**
+     * Returns whether {@code file} holds the expected content, publishing a completed partial file from an earlier
+     * launch if there is one.
+     */
+    private static boolean isPublished(final Path file, final byte[] hash) {
+        return (Files.exists(file) && Util.isFileValid(file, hash)) || PartialFiles.reuse(file, hash);
+    }
+
+    private void prepareOutput(final Path outputFile) throws IOException {
+        if (announced.compareAndSet(false, true)) {
+            Hyacinthusclip.logger.info("Applying patches");
+        }
+        if (!Files.isDirectory(outputFile.getParent())) {
+            Files.createDirectories(outputFile.getParent());
+        }
+    }
+
+    private boolean isEntryMode() {
+        return MODE_ENTRY.equals(this.mode);
+    }
+
+    /**
+     * Writes the patched file, returning whether it matches the output hash. The output is hashed as it is written.
+     */
+    private boolean writePatched(final Path inputFile, final PatchSource patchSource, final Path outputFile, final PatchCodec codec) throws IOException {
+        final VerifyingOutputStream outStream = new VerifyingOutputStream(outputFile, this.outputHash);
+        try (outStream) {
+            StreamingPatcher.patch(inputFile, patchSource, outStream, codec);
+        }
+        return outStream.matches();
+    }
+
+    private void putUrl(final ClasspathBuilder classpath, final Path outputFile) throws IOException {
+        // The list names the patched file, it takes the slot the list gives it
+        classpath.set(this.location, this.outputPath, outputFile.toUri().toURL());
+    }
+
+    private PatchSource patchSource() {
+        final String fullPatchPath = this.fullPatchPath();
+        return () -> {
+            final InputStream patchStream = AutoUpdate.getResourceAsStreamFromTargetJar(fullPatchPath);
+            if (patchStream == null) {
+                throw new IllegalStateException("Patch file not found: " + fullPatchPath);
+            }
+            return patchStream;
+        };
+    }
+
+    private String fullPatchPath() {
+        return "/META-INF/" + Util.endingSlash(this.location) + this.patchPath;
+    }
+
+    /**
+     * Returns the original as a plain file that can be memory-mapped, after checking its hash. Originals inside the
+     * downloaded jar are copied to the repo cache first, hashing them as they are copied; the copy is only needed until
+     * the patched file is written.
+     */
+    private Path localOriginal(final Path inputFile, final Path repoDir) throws IOException {
+        if (inputFile.getFileSystem() == FileSystems.getDefault()) {
+            if (!Util.isFileValid(inputFile, this.originalHash)) {
+                throw new IllegalStateException("Hash check of input file failed for " + inputFile);
+            }
+            return inputFile;
+        }
+
+        final Path copy = repoDir.resolve("cache").resolve(this.location).resolve(this.originalPath);
+        if (!isPublished(copy, this.originalHash)) {
+            Files.createDirectories(copy.getParent());
+            if (!VerifyingOutputStream.copy(Files.newInputStream(inputFile), copy, this.originalHash)) {
+                throw new IllegalStateException("Hash check of input file failed for " + inputFile);
+            }
+        }
+        return copy;
     }
 }
@@ -0,0 +1,149 @@
+package moe.luminolmc.hyacinthusclip;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The launch steps as a graph of tasks, each started as soon as the tasks it depends on are done. Every node records
+ * its wall time so {@link #report()} can show which chain of steps the launch actually waited for.
+ */
+public final class StartupGraph {
+    private final long origin = System.nanoTime();
+    private final List<Node<?>> nodes = new CopyOnWriteArrayList<>();
+    // Nodes mostly wait on disk and network, one thread each keeps them from queueing behind one another
+    private final ExecutorService executor = Executors.newCachedThreadPool(Thread.ofPlatform().name("Hyacinthusclip-Startup-", 0).daemon().factory());
+
+    /**
+     * Adds a node running {@code task} once all {@code dependencies} completed successfully. If one of them fails, the
+     * node fails with the same cause without running.
+     */
+    public <T> Node<T> node(final String name, final Callable<T> task, final Node<?>... dependencies) {
+        final Node<T> node = new Node<>(name, List.of(dependencies));
+        final CompletableFuture<?>[] inputs = new CompletableFuture<?>[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            inputs[i] = dependencies[i].future;
+        }
+
+        CompletableFuture.allOf(inputs).thenApplyAsync(ignored -> {
+            node.start = System.nanoTime();
+            try {
+                return task.call();
+            } catch (final RuntimeException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                node.end = System.nanoTime();
+            }
+        }, this.executor).whenComplete((result, error) -> {
+            if (error != null) {
+                node.future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                node.future.complete(result);
+            }
+        });
+
+        this.nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Waits until every node given has finished, successfully or not, then rethrows the first failure. Resources the
+     * nodes share can be released safely once this returns.
+     */
+    public void awaitAll(final Node<?>... nodes) {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            futures[i] = nodes[i].future.exceptionally(error -> null);
+        }
+        CompletableFuture.allOf(futures).join();
+
+        for (final Node<?> node : nodes) {
+            node.join();
+        }
+    }
+
+    /**
+     * Logs the wall time of every node that ran and the chain of nodes leading to the one that finished last.
+     */
+    public void report() {
+        final List<Node<?>> ran = new ArrayList<>();
+        for (final Node<?> node : this.nodes) {
+            if (node.hasRun()) {
+                ran.add(node);
+            }
+        }
+        if (ran.isEmpty()) {
+            return;
+        }
+
+        ran.sort(Comparator.comparingLong(node -> node.start));
+        for (final Node<?> node : ran) {
+            Hyacinthusclip.logger.info("Startup step {} took {} ms (started at +{} ms)", node.name, millis(node.end - node.start), millis(node.start - this.origin));
+        }
+
+        // Walk back from the last node to finish through whichever of its dependencies finished last
+        Node<?> current = ran.stream().max(Comparator.comparingLong(node -> node.end)).orElseThrow();
+        final List<String> path = new ArrayList<>();
+        final long end = current.end;
+        while (current != null) {
+            path.add(0, current.name);
+            current = current.dependencies.stream().filter(Node::hasRun).max(Comparator.comparingLong(node -> node.end)).orElse(null);
+        }
+        Hyacinthusclip.logger.info("Startup critical path: {} ({} ms)", String.join(" -> ", path), millis(end - this.origin));
+    }
+
+    /**
+     * Stops the threads of the graph once the nodes still running are done. No nodes can be added afterwards.
+     */
+    public void close() {
+        this.executor.shutdown();
+    }
+
+    private static long millis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public static final class Node<T> {
+        private final String name;
+        private final List<Node<?>> dependencies;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private volatile long start;
+        private volatile long end;
+
+        private Node(final String name, final List<Node<?>> dependencies) {
+            this.name = name;
+            this.dependencies = dependencies;
+        }
+
+        private boolean hasRun() {
+            return this.end != 0;
+        }
+
+        /**
+         * Returns the result as a future, for consumers that only need it in some cases.
+         */
+        public CompletableFuture<T> future() {
+            return this.future;
+        }
+
+        /**
+         * Waits for the result, rethrowing a failure of the node itself.
+         */
+        public T join() {
+            try {
+                return this.future.join();
+            } catch (final CompletionException e) {
+                throw Util.sneakyThrow(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+    }
+}
@@ -1,53 +1,21 @@
 package moe.luminolmc.hyacinthusclip;
 
 import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.StampManifest;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
 
 public class Util {
     private Util() {
     }
 
-    public static MessageDigest sha256Digest = getSha256Digest();
-
-    private static MessageDigest getSha256Digest() {
-        try {
-            return MessageDigest.getInstance("SHA-256");
-        } catch (final NoSuchAlgorithmException e) {
-            throw fail("Could not create hashing instance", e);
-        }
-    }
-
-    static byte[] readBytes(final Path file) {
-        try {
-            return readFully(Files.newInputStream(file));
-        } catch (final IOException e) {
-            throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
-        }
-    }
-
-    static byte[] readFully(final InputStream in) throws IOException {
-        try (in) {
-            // In a test this was 12 ms quicker than a ByteBuffer
-            // and for some reason that matters here.
-            byte[] buffer = new byte[16 * 1024];
-            int off = 0;
-            int read;
-            while ((read = in.read(buffer, off, buffer.length - off)) != -1) {
-                off += read;
-                if (off == buffer.length) {
-                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
-                }
-            }
-            return Arrays.copyOfRange(buffer, 0, off);
-        }
-    }
-
     public static String readResourceText(final String path) throws IOException {
         final String p;
         if (path.startsWith("/")) {
@@ -69,18 +37,52 @@ public class Util {
         return writer.toString();
     }
 
-    static boolean isDataValid(final byte[] data, final byte[] hash) {
-        return Arrays.equals(hash, sha256Digest.digest(data));
-    }
-
     public static boolean isFileValid(final Path file, final byte[] hash) {
         if (Files.exists(file)) {
-            final byte[] fileBytes = readBytes(file);
-            return isDataValid(fileBytes, hash);
+            final StampManifest stamps = StampManifest.active();
+            if (stamps != null && stamps.matches(file, hash)) {
+                return true;
+            }
+
+            try {
+                final boolean valid = Hashing.matches(file, hash);
+                if (valid && stamps != null) {
+                    stamps.record(file, hash);
+                }
+                return valid;
+            } catch (final IOException e) {
+                throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
+            }
         }
         return false;
     }
 
+    /**
+     * Replaces {@code target} with {@code source} in one step where the file system allows it, so readers see either
+     * the old or the new file and never a partially written one.
+     */
+    public static void moveAtomically(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes {@code dir} and everything below it.
+     */
+    public static void deleteRecursively(final Path dir) throws IOException {
+        if (Files.notExists(dir)) {
+            return;
+        }
+        try (final Stream<Path> walk = Files.walk(dir)) {
+            for (final Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
     static byte[] fromHex(final String s) {
         if (s.length() % 2 != 0) {
             throw new IllegalArgumentException("Length of hex " + s + " must be divisible by two");
@@ -1,18 +1,16 @@
 package moe.luminolmc.hyacinthusclip.downloader;
 
 import moe.luminolmc.hyacinthusclip.FileEntry;
-import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
 import moe.luminolmc.hyacinthusclip.Util;
 import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
+import moe.luminolmc.hyacinthusclip.verify.VerifyingOutputStream;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.leavesmc.leavesclip.logger.SimpleLogger;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -20,9 +18,7 @@ import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
-import static java.nio.file.StandardOpenOption.*;
-
-public record Downloader(FileEntry entry, Path outputDir, Path outputFile, String baseDir, Path originalRootDir,
+public record Downloader(FileEntry entry, Path outputDir, Path outputFile, String baseDir, CompletableFuture<Path> originalRootDir,
                          boolean useInternal) {
     private static final SimpleLogger logger = new SimpleLogger("Hyacinthusclip");
 
@@ -33,11 +29,26 @@ public record Downloader(FileEntry entry, Path outputDir, Path outputFile, Strin
 
             final RuntimeException failed = new RuntimeException("All maven repo download attempts has been failed for library " + this.entry.id() + "!");
 
+            // A previous launch may have been killed right before publishing a complete file
+            if (PartialFiles.reuse(this.outputFile, this.entry.hash())) {
+                return this.outputFile;
+            }
+
             try {
                 final String filePath = Util.endingSlash(this.baseDir) + this.entry.path();
+                if (this.useInternal) {
+                    this.createOutputDirectory();
+                    if (AutoUpdate.extractStoredFromTargetJar(filePath, this.outputFile, this.entry.hash())) {
+                        logger.info("Loaded " + this.entry.id() + " from stored jar entry.");
+                        return this.outputFile;
+                    }
+                }
+
                 InputStream fileStream = this.useInternal ? AutoUpdate.getResourceAsStreamFromTargetJar(filePath) : null;
                 if (fileStream == null && this.useInternal) {
-                    if (this.originalRootDir != null) {
+                    // Only now wait for the original jar, most entries are found in the launcher jar
+                    final Path originalRootDir = this.originalRootDir.join();
+                    if (originalRootDir != null) {
                         final Path originalFile = originalRootDir.resolve(filePath);
                         if (!Files.notExists(originalFile)) {
                             fileStream = Files.newInputStream(originalFile);
@@ -48,7 +59,7 @@ public record Downloader(FileEntry entry, Path outputDir, Path outputFile, Strin
 
                 if (fileStream != null) {
                     logger.info("Located target jar inside jar, loading.");
-                    this.deleteIfInvalid();
+                    this.createOutputDirectory();
                     this.write(fileStream);
                     logger.info("Loaded " + this.entry.id() + "from jar package locally.");
                     return this.outputFile;
@@ -60,14 +71,14 @@ public record Downloader(FileEntry entry, Path outputDir, Path outputFile, Strin
             logger.info("Missing: " + this.entry.id() + ", downloading from maven repo.");
 
             try {
-                this.deleteIfInvalid();
+                this.createOutputDirectory();
 
                 final MavenDependencyResolver resolver = new MavenDependencyResolver(
-                        (List.of(Arrays.stream(Hyacinthusclip.ALL_MAVEN_REPO_LINK_BASE).map(url -> new MavenDependencyResolver.MavenRepository(String.valueOf(url.hashCode()), url)).toArray(MavenDependencyResolver.MavenRepository[]::new))),
+                        (List.of(Arrays.stream(MirrorProbe.mavenRepositories()).map(url -> new MavenDependencyResolver.MavenRepository(String.valueOf(url.hashCode()), url)).toArray(MavenDependencyResolver.MavenRepository[]::new))),
                         this.outputDir
                 );
 
-                resolver.downloadTo(this.entry.id(), this.outputFile);
+                resolver.downloadTo(this.entry.id(), this.outputFile, this.entry.hash());
                 return this.outputFile;
             } catch (Exception ex) {
                 failed.addSuppressed(ex);
@@ -77,21 +88,16 @@ public record Downloader(FileEntry entry, Path outputDir, Path outputFile, Strin
         }, worker);
     }
 
-    private void deleteIfInvalid() throws IOException {
+    private void createOutputDirectory() throws IOException {
+        // The output file itself is replaced atomically once the new one is verified
         if (!Files.isDirectory(this.outputFile.getParent())) {
             Files.createDirectories(this.outputFile.getParent());
         }
-
-        Files.deleteIfExists(this.outputFile);
     }
 
     private void write(InputStream in) throws IOException {
-        try (
-                final InputStream stream = in;
-                final ReadableByteChannel inputChannel = Channels.newChannel(stream);
-                final FileChannel outputChannel = FileChannel.open(this.outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
+        if (!VerifyingOutputStream.copy(in, this.outputFile, this.entry.hash())) {
+            throw new IOException("Hash check failed for " + this.entry.id() + " loaded from jar");
         }
     }
 }
@@ -1,5 +1,6 @@
 package moe.luminolmc.hyacinthusclip.downloader;
 
+import moe.luminolmc.hyacinthusclip.verify.VerifyingOutputStream;
 import org.leavesmc.leavesclip.logger.SimpleLogger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -227,6 +228,7 @@ public class MavenDependencyResolver {
         List<String> preferredRepos;
         boolean createDirectories;
         boolean fallbackToJar;
+        byte[] expectedHash;
 
         public DownloadOptions() {
             this.overwrite = false;
@@ -308,6 +310,11 @@ public class MavenDependencyResolver {
             this.fallbackToJar = fallback;
             return this;
         }
+
+        public DownloadOptions expectedHash(byte[] sha256) {
+            this.expectedHash = sha256;
+            return this;
+        }
     }
 
     public static class PathBuilder {
@@ -490,6 +497,11 @@ public class MavenDependencyResolver {
         return download(coordinate, DownloadOptions.defaults().outputPath(fullPath));
     }
 
+    public DownloadResult downloadTo(String coordinate, Path fullPath, byte[] expectedHash) throws IOException {
+        // An existing file at the path is stale, it gets replaced once the download is verified
+        return download(coordinate, DownloadOptions.defaults().outputPath(fullPath).expectedHash(expectedHash).overwrite(true));
+    }
+
     public DownloadResult download(String coordinate, DownloadOptions options) throws IOException {
         return download(new MavenCoordinate(coordinate), options);
     }
@@ -546,7 +558,7 @@ public class MavenDependencyResolver {
                 }
 
                 try {
-                    downloadFile(downloadUrl, outputPath);
+                    downloadFile(downloadUrl, outputPath, options.expectedHash);
                     logger.info("Downloaded to: " + outputPath.toAbsolutePath());
                     return new DownloadResult(outputPath, repo, coordinate, false);
 
@@ -567,7 +579,7 @@ public class MavenDependencyResolver {
                         logger.info("Fallback URL: " + fallbackUrl);
 
                         try {
-                            downloadFile(fallbackUrl, outputPath);
+                            downloadFile(fallbackUrl, outputPath, options.expectedHash);
                             logger.info("Downloaded to: " + outputPath.toAbsolutePath() +
                                     " (using .jar fallback)");
                             return new DownloadResult(outputPath, repo, coordinate, false);
@@ -847,7 +859,7 @@ public class MavenDependencyResolver {
         return null;
     }
 
-    private void downloadFile(String urlString, Path destination) throws IOException {
+    private void downloadFile(String urlString, Path destination, byte[] expectedHash) throws IOException {
         URL url = new URL(urlString);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("GET");
@@ -859,6 +871,14 @@ public class MavenDependencyResolver {
             throw new IOException("HTTP " + responseCode + ": " + urlString);
         }
 
+        if (expectedHash != null) {
+            // Hash while writing so the file is verified without reading it back
+            if (!VerifyingOutputStream.copy(connection.getInputStream(), destination, expectedHash)) {
+                throw new IOException("Hash check failed: " + urlString);
+            }
+            return;
+        }
+
         try (InputStream in = new BufferedInputStream(connection.getInputStream());
              OutputStream out = new BufferedOutputStream(Files.newOutputStream(destination))) {
 
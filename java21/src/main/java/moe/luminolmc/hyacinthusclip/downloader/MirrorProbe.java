@@ -0,0 +1,253 @@
+package moe.luminolmc.hyacinthusclip.downloader;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Ranks download mirrors by how fast they actually are from here. Every candidate gets a ranged request for the first
+ * {@value #PROBE_BYTES} bytes of the same file, all at once, and candidates are ordered by measured throughput;
+ * candidates that fail or do not answer within {@code hyacinthusclip.mirrorProbeTimeout} seconds (5 by default) go
+ * last in their original order.
+ * <p>
+ * Rankings are kept in {@value #CACHE_FILE} in the repo's cache dir for {@code hyacinthusclip.mirrorCacheHours} hours
+ * (24 by default), keyed by the candidate URLs, so most launches do not probe at all.
+ */
+public final class MirrorProbe {
+    public static final String CACHE_FILE = "mirrors.cache";
+    private static final int PROBE_BYTES = 128 * 1024;
+
+    private static volatile Path mavenRepoDir;
+    private static volatile String mavenProbePath;
+    private static volatile String[] mavenRepositories;
+    private static final Object MAVEN_LOCK = new Object();
+    private static volatile boolean clientCreated;
+
+    private MirrorProbe() {
+    }
+
+    /**
+     * Returns the keys of {@code candidates} fastest first.
+     *
+     * @param kind names the ranking in the cache file
+     */
+    public static List<String> rank(final Path repoDir, final String kind, final Map<String, URI> candidates) {
+        final List<String> keys = new ArrayList<>(candidates.keySet());
+        if (candidates.size() <= 1) {
+            return keys;
+        }
+
+        final Path cacheFile = repoDir.resolve("cache").resolve(CACHE_FILE);
+        final String key = cacheKey(candidates);
+        final List<String> cached = readCache(cacheFile, kind, key);
+        if (cached != null && cached.size() == keys.size() && keys.containsAll(cached)) {
+            return cached;
+        }
+
+        final long timeout = Math.max(1, Long.getLong("hyacinthusclip.mirrorProbeTimeout", 5));
+        final Map<String, CompletableFuture<Double>> probes = new LinkedHashMap<>();
+        for (final Map.Entry<String, URI> candidate : candidates.entrySet()) {
+            probes.put(candidate.getKey(), CompletableFuture.supplyAsync(() -> probe(candidate.getValue(), timeout), Hyacinthusclip.DOWNLOAD_EXECUTOR));
+        }
+        try {
+            CompletableFuture.allOf(probes.values().toArray(CompletableFuture[]::new)).get(timeout, TimeUnit.SECONDS);
+        } catch (final TimeoutException | InterruptedException | ExecutionException e) {
+            // Whatever has not answered by now counts as failed
+        }
+
+        final Map<String, Double> throughput = new HashMap<>();
+        for (final Map.Entry<String, CompletableFuture<Double>> probe : probes.entrySet()) {
+            final double measured = probe.getValue().exceptionally(error -> 0.0).getNow(0.0);
+            throughput.put(probe.getKey(), measured);
+            probe.getValue().cancel(true);
+        }
+        if (throughput.values().stream().allMatch(measured -> measured == 0.0)) {
+            Hyacinthusclip.logger.warn("No {} mirror answered the probe, keeping the default order", kind);
+            return keys;
+        }
+
+        // A stable sort keeps failed candidates in their original order
+        keys.sort(Comparator.comparingDouble((String candidate) -> throughput.get(candidate)).reversed());
+        for (final String candidate : keys) {
+            Hyacinthusclip.logger.info("Mirror {} ({}): {} KiB/s", candidate, kind, (long) (throughput.get(candidate) / 1024));
+        }
+        writeCache(cacheFile, kind, key, keys);
+        return keys;
+    }
+
+    /**
+     * Returns bytes per second for the first {@value #PROBE_BYTES} bytes of {@code uri}, 0 if it could not be read.
+     */
+    private static double probe(final URI uri, final long timeout) {
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Range", "bytes=0-" + (PROBE_BYTES - 1))
+                .timeout(Duration.ofSeconds(timeout))
+                .GET()
+                .build();
+
+        final long start = System.nanoTime();
+        try {
+            final HttpResponse<InputStream> response = client().send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long read = 0;
+            // A server ignoring the range sends the whole file, stop after the probe size either way
+            try (final InputStream body = response.body()) {
+                if (response.statusCode() != 200 && response.statusCode() != 206) {
+                    return 0.0;
+                }
+                final byte[] buffer = new byte[16 * 1024];
+                int count;
+                while (read < PROBE_BYTES && (count = body.read(buffer)) != -1) {
+                    read += count;
+                }
+            }
+            final long elapsed = Math.max(1, System.nanoTime() - start);
+            return read * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            return 0.0;
+        }
+    }
+
+    private static HttpClient client() {
+        return ClientHolder.CLIENT;
+    }
+
+    /**
+     * Closes the connections of the probe client, if one was created.
+     */
+    public static void shutdown() {
+        if (clientCreated) {
+            ClientHolder.CLIENT.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets up ranking of the Maven repositories by a request for {@code probePath}, an artifact all of them carry. The
+     * repositories are only probed once a library actually has to be downloaded.
+     */
+    public static void configureMaven(final Path repoDir, final String probePath) {
+        mavenRepoDir = repoDir;
+        mavenProbePath = probePath;
+        mavenRepositories = null;
+    }
+
+    /**
+     * Returns {@link Hyacinthusclip#ALL_MAVEN_REPO_LINK_BASE} fastest first.
+     */
+    public static String[] mavenRepositories() {
+        String[] result = mavenRepositories;
+        if (result == null) {
+            synchronized (MAVEN_LOCK) {
+                result = mavenRepositories;
+                if (result == null) {
+                    result = rankMaven();
+                    mavenRepositories = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String[] rankMaven() {
+        final Path repoDir = mavenRepoDir;
+        final String probePath = mavenProbePath;
+        if (repoDir == null || probePath == null) {
+            return Hyacinthusclip.ALL_MAVEN_REPO_LINK_BASE;
+        }
+
+        final Map<String, URI> candidates = new LinkedHashMap<>();
+        for (final String repository : Hyacinthusclip.ALL_MAVEN_REPO_LINK_BASE) {
+            candidates.put(repository, URI.create(Util.endingSlash(repository) + probePath));
+        }
+        return rank(repoDir, "maven", candidates).toArray(String[]::new);
+    }
+
+    private static String cacheKey(final Map<String, URI> candidates) {
+        final List<String> urls = new ArrayList<>();
+        for (final URI uri : candidates.values()) {
+            urls.add(uri.toString());
+        }
+        urls.sort(null);
+        return Integer.toHexString(String.join(" ", urls).hashCode());
+    }
+
+    /**
+     * Cache lines are {@code kind<TAB>key<TAB>timestamp<TAB>candidate...}.
+     */
+    private static List<String> readCache(final Path cacheFile, final String kind, final String key) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+
+        final long ttl = TimeUnit.HOURS.toMillis(Long.getLong("hyacinthusclip.mirrorCacheHours", 24));
+        try {
+            for (final String line : Files.readAllLines(cacheFile, StandardCharsets.UTF_8)) {
+                final String[] parts = line.split("\t");
+                if (parts.length < 4 || !parts[0].equals(kind) || !parts[1].equals(key)) {
+                    continue;
+                }
+                if (System.currentTimeMillis() - Long.parseLong(parts[2]) > ttl) {
+                    return null;
+                }
+                return new ArrayList<>(Arrays.asList(parts).subList(3, parts.length));
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // Probed again and rewritten
+        }
+        return null;
+    }
+
+    private static synchronized void writeCache(final Path cacheFile, final String kind, final String key, final List<String> ranking) {
+        final List<String> lines = new ArrayList<>();
+        try {
+            if (Files.isRegularFile(cacheFile)) {
+                for (final String line : Files.readAllLines(cacheFile, StandardCharsets.UTF_8)) {
+                    if (!line.startsWith(kind + "\t")) {
+                        lines.add(line);
+                    }
+                }
+            }
+            lines.add(kind + "\t" + key + "\t" + System.currentTimeMillis() + "\t" + String.join("\t", ranking));
+
+            Files.createDirectories(cacheFile.getParent());
+            final Path temp = cacheFile.resolveSibling(CACHE_FILE + ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Util.moveAtomically(temp, cacheFile);
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to cache mirror ranking: {}", e.getMessage());
+        }
+    }
+
+    // Created by class initialisation rather than under MAVEN_LOCK, which a ranking holds while its probes run
+    private static final class ClientHolder {
+        private static final HttpClient CLIENT = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(Math.max(1, Long.getLong("hyacinthusclip.mirrorProbeTimeout", 5))))
+                .executor(Hyacinthusclip.DOWNLOAD_EXECUTOR)
+                .build();
+
+        static {
+            clientCreated = true;
+        }
+    }
+}
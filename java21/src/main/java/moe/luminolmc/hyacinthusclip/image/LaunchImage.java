@@ -0,0 +1,318 @@
+package moe.luminolmc.hyacinthusclip.image;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlay;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlays;
+import moe.luminolmc.hyacinthusclip.verify.Durability;
+import moe.luminolmc.hyacinthusclip.verify.FileFingerprints;
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Merges the launch class path into a single jar, so class and resource lookups hit one central directory instead of
+ * walking more than a hundred jars. Enabled with {@code hyacinthusclip.flatten}.
+ * <p>
+ * Jars are merged in class path order and the first jar containing an entry wins, which is the order a
+ * {@link java.net.URLClassLoader} would have found them in. {@code META-INF/services} files are concatenated instead,
+ * and signature files are dropped since the merged jar cannot carry valid signatures. The original jar of an entry
+ * overlay is merged as the patched jar: entries the overlay changes or adds are patched into the image at that jar's
+ * position, and entries it deletes are taken from the jars after it, if any has them. The image is multi-release if any
+ * jar is, and keeps a versioned entry only from the jar that serves its name on the class path, so a later jar's
+ * versioned entry never shadows an earlier jar's class.
+ * <p>
+ * Images are kept in {@code image/} in the repo dir, named after a fingerprint of the input jars, so a later launch
+ * with the same class path opens the existing image directly.
+ */
+public final class LaunchImage {
+    private static final String DIRECTORY = "image";
+    private static final String SERVICES = "META-INF/services/";
+    private static final String VERSIONS = "META-INF/versions/";
+
+    private LaunchImage() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("hyacinthusclip.flatten");
+    }
+
+    /**
+     * Returns a class path consisting of the image for {@code urls}, building it first if needed. Falls back to
+     * {@code urls} if any of them is not a local jar or the image cannot be built.
+     */
+    public static URL[] flatten(final URL[] urls, final Path repoDir) {
+        try {
+            final Path[] jars = new Path[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                if (!"file".equals(urls[i].getProtocol())) {
+                    return urls;
+                }
+                jars[i] = Path.of(urls[i].toURI());
+                if (!Files.isRegularFile(jars[i])) {
+                    return urls;
+                }
+            }
+
+            final Path imageDir = repoDir.resolve(DIRECTORY);
+            final Path image = imageDir.resolve(fingerprint(jars) + ".jar");
+            if (!Files.isRegularFile(image)) {
+                Hyacinthusclip.logger.info("Building launch image from {} jars", jars.length);
+                Files.createDirectories(imageDir);
+                build(jars, image);
+                removeOthers(imageDir, image);
+                // Published in the launch's durability batch, committed by the deferred class path commit
+            }
+            return new URL[]{image.toUri().toURL()};
+        } catch (final IOException | URISyntaxException e) {
+            Hyacinthusclip.logger.warn("Failed to build launch image, using the plain class path: {}", e.getMessage());
+            return urls;
+        }
+    }
+
+    /**
+     * Fingerprints the inputs by path, size, modification time and file key; all of them are verified artifacts that
+     * are only ever replaced, never modified in place.
+     */
+    private static String fingerprint(final Path[] jars) throws IOException {
+        // Which multi-release entries an image keeps depends on the Java version
+        final StringBuilder description = new StringBuilder("java ").append(Runtime.version().feature()).append('\n');
+        for (final Path jar : jars) {
+            description.append(FileFingerprints.describe(jar)).append('\n');
+            // The image holds the overlay's patched entries, so its patches are an input too
+            final EntryOverlay overlay = EntryOverlays.forBaseJar(jar);
+            if (overlay != null) {
+                description.append(FileFingerprints.describe(overlay.getArchiveFile())).append('\n');
+            }
+        }
+        return FileFingerprints.key(description.toString());
+    }
+
+    private static void build(final Path[] jars, final Path image) throws IOException {
+        final Path partial = PartialFiles.partialFile(image);
+        final Set<String> written = new HashSet<>();
+        // Names as the class path resolves them, each served by the first jar that has it
+        final Set<String> claimed = new HashSet<>();
+        final Map<String, ByteArrayOutputStream> services = new LinkedHashMap<>();
+        final byte[] buffer = new byte[64 * 1024];
+
+        try (final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(partial), 64 * 1024))) {
+            out.setLevel(Deflater.BEST_SPEED);
+            final boolean multiRelease = writeManifest(jars, out);
+            written.add(JarFile.MANIFEST_NAME);
+
+            for (final Path jar : jars) {
+                final EntryOverlay overlay = EntryOverlays.forBaseJar(jar);
+                try (final JarFile jarFile = new JarFile(jar.toFile(), false)) {
+                    final boolean versioned = multiRelease && jarFile.isMultiRelease();
+
+                    // The entries of the jar, as patched by its overlay; sorted so an overlay always gives the same image
+                    final Set<String> names = new LinkedHashSet<>();
+                    final Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        final String name = entries.nextElement().getName();
+                        if (overlay == null || !overlay.deletes(name)) {
+                            names.add(name);
+                        }
+                    }
+                    if (overlay != null) {
+                        for (final String name : new TreeSet<>(overlay.names())) {
+                            if (!overlay.deletes(name)) {
+                                names.add(name);
+                            }
+                        }
+                    }
+
+                    // A versioned entry only replaces the base entry of its own jar, never one an earlier jar serves
+                    final Set<String> owned = new HashSet<>();
+                    for (final String name : names) {
+                        final String resolved = resolvedName(name, versioned, multiRelease, true);
+                        if (resolved != null && !claimed.contains(resolved)) {
+                            owned.add(resolved);
+                        }
+                    }
+                    claimed.addAll(owned);
+
+                    for (final String name : names) {
+                        final boolean service = name.startsWith(SERVICES) && !name.endsWith("/");
+                        if (isDropped(name) || !(service || owned.contains(resolvedName(name, versioned, multiRelease, false)))) {
+                            continue;
+                        }
+                        if (overlay != null && overlay.covers(name)) {
+                            write(name, new ByteArrayInputStream(overlay.read(name)), out, written, services, buffer);
+                            continue;
+                        }
+                        final JarEntry entry = jarFile.getJarEntry(name);
+                        try (final InputStream in = jarFile.getInputStream(entry)) {
+                            write(name, entry.isDirectory() ? null : in, out, written, services, buffer);
+                        }
+                    }
+                }
+            }
+
+            for (final Map.Entry<String, ByteArrayOutputStream> service : services.entrySet()) {
+                out.putNextEntry(new ZipEntry(service.getKey()));
+                service.getValue().writeTo(out);
+                out.closeEntry();
+            }
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        Util.moveAtomically(partial, image);
+        Durability.published(image);
+    }
+
+    /**
+     * Returns the name an entry is looked up by: versioned entries of a multi-release jar stand for their base name.
+     * Returns {@code null} for the {@code META-INF/versions} entries of a plain jar in a multi-release image, which would
+     * turn into versioned entries there, and, if {@code current}, for versions newer than this Java, which do not serve
+     * their name.
+     */
+    private static String resolvedName(final String name, final boolean versioned, final boolean multiRelease, final boolean current) {
+        if (!name.startsWith(VERSIONS)) {
+            return name;
+        }
+        if (!versioned) {
+            return multiRelease ? null : name;
+        }
+
+        final int slash = name.indexOf('/', VERSIONS.length());
+        if (slash == -1 || slash == name.length() - 1) {
+            return name;
+        }
+        final int version;
+        try {
+            version = Integer.parseInt(name.substring(VERSIONS.length(), slash));
+        } catch (final NumberFormatException e) {
+            return name;
+        }
+        if (current && version > Runtime.version().feature()) {
+            return null;
+        }
+        return name.substring(slash + 1);
+    }
+
+    /**
+     * Writes an entry unless an earlier jar already did; services files are collected to be merged instead.
+     * {@code in} is {@code null} for directories.
+     */
+    private static void write(
+            final String name,
+            final InputStream in,
+            final ZipOutputStream out,
+            final Set<String> written,
+            final Map<String, ByteArrayOutputStream> services,
+            final byte[] buffer
+    ) throws IOException {
+        if (name.startsWith(SERVICES) && in != null) {
+            final ByteArrayOutputStream merged = services.computeIfAbsent(name, n -> new ByteArrayOutputStream());
+            in.transferTo(merged);
+            merged.write('\n');
+            return;
+        }
+
+        if (!written.add(name)) {
+            return;
+        }
+        out.putNextEntry(new ZipEntry(name));
+        if (in != null) {
+            copy(in, out, buffer);
+        }
+        out.closeEntry();
+    }
+
+    /**
+     * Writes the image manifest and returns whether the image is multi-release, which it is if any jar is.
+     */
+    private static boolean writeManifest(final Path[] jars, final ZipOutputStream out) throws IOException {
+        // The first jar is the server itself, its manifest describes the image
+        Manifest manifest = null;
+        boolean multiRelease = false;
+        for (final Path jar : jars) {
+            try (final JarFile jarFile = new JarFile(jar.toFile(), false)) {
+                final EntryOverlay overlay = EntryOverlays.forBaseJar(jar);
+                final Manifest jarManifest = overlay != null ? overlay.getManifest() : jarFile.getManifest();
+                if (jarManifest == null) {
+                    continue;
+                }
+                if (manifest == null) {
+                    manifest = new Manifest(jarManifest);
+                    // Per-entry attributes mostly carry signature digests, which no longer apply
+                    manifest.getEntries().clear();
+                }
+                multiRelease |= jarFile.isMultiRelease();
+            }
+        }
+
+        if (manifest == null) {
+            manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        }
+        if (multiRelease) {
+            manifest.getMainAttributes().put(Attributes.Name.MULTI_RELEASE, "true");
+        }
+
+        out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+        manifest.write(out);
+        out.closeEntry();
+        return multiRelease;
+    }
+
+    /**
+     * Signature files and jar indexes describe their original jar and would be wrong in the image.
+     */
+    private static boolean isDropped(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+        final String upper = name.toUpperCase(Locale.ROOT);
+        return upper.equals("META-INF/INDEX.LIST") || upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC")
+                || upper.startsWith("META-INF/SIG-");
+    }
+
+    private static void copy(final InputStream in, final OutputStream out, final byte[] buffer) throws IOException {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void removeOthers(final Path imageDir, final Path keep) {
+        try (final Stream<Path> files = Files.list(imageDir)) {
+            for (final Path file : files.toList()) {
+                if (!file.equals(keep)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to clean up old launch images: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package moe.luminolmc.hyacinthusclip.overlay;
+
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+import moe.luminolmc.hyacinthusclip.patch.StreamingPatcher;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A patched jar that is never written to disk. Unchanged entries are read straight from the original jar, changed
+ * entries are patched from a per-entry delta the first time they are read.
+ * <p>
+ * The patch archive is a zip with an {@value #INDEX} file listing one {@code op\tname} pair per line:
+ * <ul>
+ *     <li>{@code patch}: the entry differs from the original, a bsdiff patch for it is stored at {@code delta/<name>}</li>
+ *     <li>{@code add}: the entry is new, its content is stored at {@code add/<name>}</li>
+ *     <li>{@code delete}: the entry exists in the original but not in the patched jar</li>
+ * </ul>
+ * Entries not listed are identical in both jars.
+ */
+public final class EntryOverlay {
+    public static final String PROTOCOL = "hyacinthusclip-overlay";
+    static final String INDEX = "entries.list";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private final Path baseJar;
+    private final Path archiveFile;
+    private final String codecId;
+    private final JarFile base;
+    private final ZipFile archive;
+    private final PatchCodec codec;
+    private final Map<String, Op> entries;
+    private final URL baseUrl;
+    private final CodeSource codeSource;
+    private final OverlayURLStreamHandler handler = new OverlayURLStreamHandler(this);
+    private volatile Manifest manifest;
+
+    public EntryOverlay(final Path baseJar, final Path archiveFile, final PatchCodec codec) throws IOException {
+        this.baseJar = baseJar;
+        this.archiveFile = archiveFile;
+        this.codecId = codec.id();
+        this.base = new JarFile(baseJar.toFile());
+        this.archive = new ZipFile(archiveFile.toFile());
+        // Entries are small, decoding them on the pool would cost more than it saves
+        this.codec = codec.sequential();
+        this.entries = readIndex(this.archive);
+        this.baseUrl = baseJar.toUri().toURL();
+        this.codeSource = new CodeSource(this.baseUrl, (CodeSigner[]) null);
+    }
+
+    private static Map<String, Op> readIndex(final ZipFile archive) throws IOException {
+        final ZipEntry index = archive.getEntry(INDEX);
+        if (index == null) {
+            throw new IOException("Entry patch archive " + archive.getName() + " has no " + INDEX);
+        }
+
+        final Map<String, Op> entries = new HashMap<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(archive.getInputStream(index), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+
+                final String[] parts = line.split("\t");
+                if (parts.length != 2) {
+                    throw new IOException("Invalid entry patch line: " + line);
+                }
+                final Op op = switch (parts[0]) {
+                    case "patch" -> Op.PATCH;
+                    case "add" -> Op.ADD;
+                    case "delete" -> Op.DELETE;
+                    default -> throw new IOException("Unknown entry patch operation: " + parts[0]);
+                };
+                entries.put(parts[1], op);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns whether this overlay decides what {@code name} resolves to in its original jar, either because it changed
+     * the entry or because it removed it.
+     */
+    public boolean covers(final String name) {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Returns whether the patched jar no longer has {@code name}.
+     */
+    public boolean deletes(final String name) {
+        return this.entries.get(name) == Op.DELETE;
+    }
+
+    /**
+     * Returns the names this overlay covers.
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * Returns the patched content of a covered entry, or {@code null} if the patched jar does not contain it.
+     */
+    public byte[] read(final String name) throws IOException {
+        final Op op = this.entries.get(name);
+        if (op == null) {
+            return null;
+        }
+
+        return switch (op) {
+            case DELETE -> null;
+            case ADD -> {
+                try (final InputStream in = this.openArchiveEntry("add/" + name)) {
+                    yield in.readAllBytes();
+                }
+            }
+            case PATCH -> {
+                final ZipEntry original = this.base.getEntry(name);
+                if (original == null) {
+                    throw new IOException("Patched entry " + name + " is missing from " + this.base.getName());
+                }
+                final byte[] old;
+                try (final InputStream in = this.base.getInputStream(original)) {
+                    old = in.readAllBytes();
+                }
+
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(old.length + old.length / 8);
+                StreamingPatcher.patch(ByteBuffer.wrap(old), () -> this.openArchiveEntry("delta/" + name), out, this.codec);
+                yield out.toByteArray();
+            }
+        };
+    }
+
+    /**
+     * Returns a URL serving the patched content of a covered entry, or {@code null} if the patched jar does not
+     * contain it.
+     */
+    public URL getResource(final String name) {
+        if (this.entries.get(name) == Op.DELETE) {
+            return null;
+        }
+
+        try {
+            return URL.of(new URI(PROTOCOL, null, "/" + name, null), this.handler);
+        } catch (final URISyntaxException | MalformedURLException e) {
+            return null;
+        }
+    }
+
+    public Manifest getManifest() throws IOException {
+        Manifest result = this.manifest;
+        if (result == null) {
+            final byte[] data = this.covers(MANIFEST) ? this.read(MANIFEST) : null;
+            result = data != null ? new Manifest(new ByteArrayInputStream(data)) : this.base.getManifest();
+            if (result == null) {
+                result = new Manifest();
+            }
+            this.manifest = result;
+        }
+        return result;
+    }
+
+    public Path getBaseJar() {
+        return this.baseJar;
+    }
+
+    public Path getArchiveFile() {
+        return this.archiveFile;
+    }
+
+    public String getCodecId() {
+        return this.codecId;
+    }
+
+    public URL getBaseUrl() {
+        return this.baseUrl;
+    }
+
+    public CodeSource getCodeSource() {
+        return this.codeSource;
+    }
+
+    private InputStream openArchiveEntry(final String path) throws IOException {
+        final ZipEntry entry = this.archive.getEntry(path);
+        if (entry == null) {
+            throw new IOException("Entry patch archive " + this.archive.getName() + " is missing " + path);
+        }
+        return this.archive.getInputStream(entry);
+    }
+
+    private enum Op {
+        PATCH,
+        ADD,
+        DELETE
+    }
+}
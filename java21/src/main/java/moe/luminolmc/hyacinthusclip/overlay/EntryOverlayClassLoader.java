@@ -0,0 +1,143 @@
+package moe.luminolmc.hyacinthusclip.overlay;
+
+import moe.luminolmc.hyacinthusclip.ClassLoadProfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.jar.Manifest;
+
+/**
+ * Launch class loader used when some patches are applied per entry. Classes and resources covered by an
+ * {@link EntryOverlay} resolve as they would on the class path with the patched jar in place of the original: the
+ * overlay serves them at the original jar's position, everything else is found on the class path as usual. Every class
+ * it defines is reported to the {@link ClassLoadProfile}.
+ */
+public class EntryOverlayClassLoader extends URLClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    public EntryOverlayClassLoader(final URL[] urls, final ClassLoader parent) {
+        super(urls, parent);
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final String path = name.replace('.', '/') + ".class";
+        final Class<?> defined;
+        if (!EntryOverlays.covers(path)) {
+            defined = super.findClass(name);
+        } else {
+            final EntryOverlays.Source source = this.locate(path);
+            if (source == null) {
+                // Deleted from its jar and on no other, the original jar's copy must not be found
+                throw new ClassNotFoundException(name);
+            }
+            if (source.overlay() != null) {
+                defined = this.defineFromOverlay(name, path, source.overlay());
+            } else if (source.url().equals(super.findResource(path))) {
+                // An earlier jar has the class, the class path finds it by itself
+                defined = super.findClass(name);
+            } else {
+                defined = this.defineFromJar(name, source.url());
+            }
+        }
+        ClassLoadProfile.defined(name);
+        return defined;
+    }
+
+    private Class<?> defineFromOverlay(final String name, final String path, final EntryOverlay overlay) throws ClassNotFoundException {
+        final byte[] data;
+        final Manifest manifest;
+        try {
+            data = overlay.read(path);
+            manifest = overlay.getManifest();
+        } catch (final IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        if (data == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        this.definePackageOf(name, manifest, overlay.getBaseUrl());
+        return this.defineClass(name, data, 0, data.length, overlay.getCodeSource());
+    }
+
+    /**
+     * Defines a class from a jar past the original jar of an overlay that deleted it, which the class path alone would
+     * not get to.
+     */
+    private Class<?> defineFromJar(final String name, final URL url) throws ClassNotFoundException {
+        try {
+            final URLConnection connection = url.openConnection();
+            if (!(connection instanceof JarURLConnection jar)) {
+                throw new ClassNotFoundException(name + " resolves to " + url + ", which is not in a jar");
+            }
+            final byte[] data;
+            try (final InputStream in = jar.getInputStream()) {
+                data = in.readAllBytes();
+            }
+
+            final URL jarUrl = jar.getJarFileURL();
+            this.definePackageOf(name, jar.getManifest(), jarUrl);
+            return this.defineClass(name, data, 0, data.length, new CodeSource(jarUrl, (CodeSigner[]) null));
+        } catch (final IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private void definePackageOf(final String className, final Manifest manifest, final URL url) {
+        final int lastDot = className.lastIndexOf('.');
+        if (lastDot == -1) {
+            return;
+        }
+        final String packageName = className.substring(0, lastDot);
+        if (this.getDefinedPackage(packageName) != null) {
+            return;
+        }
+        try {
+            if (manifest != null) {
+                this.definePackage(packageName, manifest, url);
+            } else {
+                this.definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (final IllegalArgumentException e) {
+            // Defined concurrently by another thread
+        }
+    }
+
+    @Override
+    public URL findResource(final String name) {
+        if (!EntryOverlays.covers(name)) {
+            return super.findResource(name);
+        }
+        final EntryOverlays.Source source = this.locate(name);
+        return source == null ? null : source.url();
+    }
+
+    @Override
+    public Enumeration<URL> findResources(final String name) throws IOException {
+        if (!EntryOverlays.covers(name)) {
+            return super.findResources(name);
+        }
+        return EntryOverlays.findResources(name, this.getURLs(), super.findResources(name));
+    }
+
+    /**
+     * Resolves a covered name on the part of the class path this loader has, without waiting for more of it.
+     */
+    private EntryOverlays.Source locate(final String name) {
+        try {
+            return EntryOverlays.locate(name, this.getURLs(), super.findResources(name));
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package moe.luminolmc.hyacinthusclip.overlay;
+
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The overlays registered while applying entry patches. The original jar of an overlay stays on the class path, and
+ * an overlay only decides what its own entries resolve to at that jar's position: jars before it still win, and an
+ * entry the overlay deletes is looked up in the jars after it. Overlays whose original jar is not on a class path
+ * play no part in it.
+ */
+public final class EntryOverlays {
+    private static final List<EntryOverlay> overlays = new CopyOnWriteArrayList<>();
+
+    private EntryOverlays() {
+    }
+
+    public static void register(final EntryOverlay overlay) {
+        overlays.add(overlay);
+    }
+
+    public static List<EntryOverlay> all() {
+        return List.copyOf(overlays);
+    }
+
+    public static boolean isEmpty() {
+        return overlays.isEmpty();
+    }
+
+    /**
+     * Returns whether any overlay covers {@code name}. Lookups of names no overlay covers go to the class path as usual.
+     */
+    public static boolean covers(final String name) {
+        for (final EntryOverlay overlay : overlays) {
+            if (overlay.covers(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the overlay whose original jar is {@code jar}, or {@code null}.
+     */
+    public static EntryOverlay forBaseJar(final Path jar) {
+        final Path normalized = jar.toAbsolutePath().normalize();
+        for (final EntryOverlay overlay : overlays) {
+            if (overlay.getBaseJar().toAbsolutePath().normalize().equals(normalized)) {
+                return overlay;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns where {@code name} resolves to on {@code classpath}, or {@code null} if it is on none of its jars.
+     * {@code found} are the class path's own results for the name, in class path order.
+     */
+    public static Source locate(final String name, final URL[] classpath, final Enumeration<URL> found) {
+        final List<Source> sources = sources(name, classpath, found);
+        return sources.isEmpty() ? null : sources.get(0);
+    }
+
+    public static Enumeration<URL> findResources(final String name, final URL[] classpath, final Enumeration<URL> found) {
+        final List<URL> result = new ArrayList<>();
+        for (final Source source : sources(name, classpath, found)) {
+            result.add(source.url());
+        }
+        return Collections.enumeration(result);
+    }
+
+    /**
+     * Replaces the class path's results from the original jars of the overlays covering {@code name} with what the
+     * overlays make of them, at the same position.
+     */
+    private static List<Source> sources(final String name, final URL[] classpath, final Enumeration<URL> found) {
+        final List<Positioned> covering = new ArrayList<>();
+        for (final EntryOverlay overlay : overlays) {
+            if (overlay.covers(name)) {
+                final int position = position(classpath, overlay.getBaseUrl());
+                if (position != -1) {
+                    covering.add(new Positioned(position, overlay));
+                }
+            }
+        }
+        covering.sort(Comparator.comparingInt(Positioned::position));
+
+        final List<Source> result = new ArrayList<>();
+        int next = 0;
+        while (found.hasMoreElements()) {
+            final URL url = found.nextElement();
+            final int position = containing(classpath, url);
+            for (; next < covering.size() && covering.get(next).position() <= position; next++) {
+                addOverlay(result, covering.get(next).overlay(), name);
+            }
+            if (!isCovered(covering, position)) {
+                result.add(new Source(url, null));
+            }
+        }
+        for (; next < covering.size(); next++) {
+            addOverlay(result, covering.get(next).overlay(), name);
+        }
+        return result;
+    }
+
+    private static void addOverlay(final List<Source> result, final EntryOverlay overlay, final String name) {
+        final URL url = overlay.getResource(name);
+        // A deleted entry is only gone from this jar, later ones may still have it
+        if (url != null) {
+            result.add(new Source(url, overlay));
+        }
+    }
+
+    private static boolean isCovered(final List<Positioned> covering, final int position) {
+        for (final Positioned positioned : covering) {
+            if (positioned.position() == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int position(final URL[] classpath, final URL jar) {
+        final String wanted = jar.toString();
+        for (int i = 0; i < classpath.length; i++) {
+            if (classpath[i].toString().equals(wanted)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the class path entry a resource URL points into, or {@link Integer#MAX_VALUE} for URLs the
+     * class path found elsewhere, such as through a manifest {@code Class-Path}.
+     */
+    private static int containing(final URL[] classpath, final URL resource) {
+        final String url = resource.toString();
+        for (int i = 0; i < classpath.length; i++) {
+            final String entry = classpath[i].toString();
+            if (url.startsWith("jar:" + entry + "!/") || (entry.endsWith("/") && url.startsWith(entry))) {
+                return i;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Where a name resolves to: a class path URL, or an overlay's URL for its patched content.
+     *
+     * @param overlay the overlay serving the entry, {@code null} if the class path serves it
+     */
+    public record Source(URL url, EntryOverlay overlay) {
+    }
+
+    private record Positioned(int position, EntryOverlay overlay) {
+    }
+}
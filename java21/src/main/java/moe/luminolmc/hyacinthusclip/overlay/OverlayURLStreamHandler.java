@@ -0,0 +1,73 @@
+package moe.luminolmc.hyacinthusclip.overlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * Serves the {@link EntryOverlay#PROTOCOL} URLs handed out by an overlay. The entry is patched when the connection is
+ * opened for reading, not when the URL is created.
+ */
+final class OverlayURLStreamHandler extends URLStreamHandler {
+    private final EntryOverlay overlay;
+
+    OverlayURLStreamHandler(final EntryOverlay overlay) {
+        this.overlay = overlay;
+    }
+
+    @Override
+    protected URLConnection openConnection(final URL url) throws IOException {
+        final String name;
+        try {
+            name = url.toURI().getPath().substring(1);
+        } catch (final URISyntaxException e) {
+            throw new IOException("Invalid overlay URL: " + url, e);
+        }
+        return new Connection(url, this.overlay, name);
+    }
+
+    private static final class Connection extends URLConnection {
+        private final EntryOverlay overlay;
+        private final String name;
+        private byte[] data;
+
+        private Connection(final URL url, final EntryOverlay overlay, final String name) {
+            super(url);
+            this.overlay = overlay;
+            this.name = name;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (this.connected) {
+                return;
+            }
+            this.data = this.overlay.read(this.name);
+            if (this.data == null) {
+                throw new FileNotFoundException(this.name);
+            }
+            this.connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            this.connect();
+            return new ByteArrayInputStream(this.data);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                this.connect();
+            } catch (final IOException e) {
+                return -1;
+            }
+            return this.data.length;
+        }
+    }
+}
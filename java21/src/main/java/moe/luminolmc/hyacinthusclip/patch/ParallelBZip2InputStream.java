@@ -0,0 +1,514 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a single bzip2 stream by splitting it at block boundaries and decoding the blocks on a worker pool.
+ * <p>
+ * bzip2 blocks are not byte aligned, so the compressed data is scanned at every bit offset for the 48-bit block
+ * and end-of-stream magic numbers. Every block found is re-wrapped into a standalone single-block stream and handed to
+ * {@link BZip2CompressorInputStream}. A worker only decodes a block up to its first {@link #PRIME_SIZE} bytes, which
+ * is where the Huffman, MTF and BWT work happens; the cheap run-length expansion of the rest of the block is done by
+ * the reading thread. At most {@code lookahead} blocks are in flight per stream, so memory stays bounded by
+ * {@link #footprint()} whatever the number of cores.
+ * <p>
+ * The block magic may also occur by chance inside compressed data. A block that fails to decode is merged with the
+ * one after it and decoded again, and the combined stream CRC is checked at the end, so the output is always
+ * identical to a sequential decode or the stream is rejected.
+ */
+public final class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    private static final int PRIME_SIZE = 256 * 1024;
+    // A primed block at level 9: about 4.5 MiB of decoder tables, the decoded head and up to 900 kB of compressed data
+    private static final long BLOCK_FOOTPRINT = 6L * 1024 * 1024;
+    private static final int[] MAGIC_CANDIDATES = magicCandidates();
+
+    private static volatile ExecutorService executor;
+
+    private final InputStream in;
+    private final int lookahead;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final byte[] single = new byte[1];
+    private int level;
+
+    // Scanner state: `window` holds the compressed bytes from the start of the current block onwards
+    private byte[] window = new byte[64 * 1024];
+    private int windowLength;
+    private long windowBitOffset;
+    private long segmentStart = -1;
+    private long bitPosition;
+    private boolean scanned;
+    private int storedStreamCrc;
+
+    private int computedStreamCrc;
+    private Block current;
+    private boolean finished;
+
+    public ParallelBZip2InputStream(final InputStream in, final int lookahead) throws IOException {
+        this.in = in;
+        this.lookahead = Math.max(1, lookahead);
+        this.readHeader();
+    }
+
+    public static boolean isEnabled() {
+        return threads() > 1 && !Boolean.getBoolean("hyacinthusclip.disableParallelBZip2");
+    }
+
+    /**
+     * Returns {@code hyacinthusclip.bzip2Lookahead}, the blocks a stream decodes ahead of the reader (4 by default).
+     * Each one holds a primed decoder, so this is a fixed number rather than one per core: a patch decodes three
+     * streams and several patches run at once.
+     */
+    public static int lookahead() {
+        return Math.max(1, Integer.getInteger("hyacinthusclip.bzip2Lookahead", 4));
+    }
+
+    /**
+     * Returns the heap one stream holds at most: the blocks decoded ahead plus the one being read.
+     */
+    public static long footprint() {
+        return (lookahead() + 1L) * BLOCK_FOOTPRINT;
+    }
+
+    public static int threads() {
+        return Math.max(1, Integer.getInteger("hyacinthusclip.bzip2Threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static ExecutorService executor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (ParallelBZip2InputStream.class) {
+                result = executor;
+                if (result == null) {
+                    final AtomicInteger threadId = new AtomicInteger();
+                    result = Executors.newFixedThreadPool(threads(), r -> {
+                        final Thread thread = new Thread(r, "Hyacinthusclip-BZip2-" + threadId.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the decoder pool once its queued blocks are decoded. A later {@link #executor()} call creates a new one.
+     */
+    public static void shutdown() {
+        synchronized (ParallelBZip2InputStream.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    private void readHeader() throws IOException {
+        final byte[] header = this.in.readNBytes(4);
+        if (header.length != 4 || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h'
+                || header[3] < '1' || header[3] > '9') {
+            throw new IOException("Not a bzip2 stream");
+        }
+        this.level = header[3];
+        this.bitPosition = 32;
+        this.windowBitOffset = 32;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return this.read(this.single, 0, 1) == -1 ? -1 : this.single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (this.current == null) {
+                this.current = this.nextBlock();
+                if (this.current == null) {
+                    return -1;
+                }
+            }
+            final int read = this.current.read(b, off, len);
+            if (read != -1) {
+                return read;
+            }
+            this.current.close();
+            this.current = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Pending entry : this.pending) {
+            entry.future().cancel(false);
+        }
+        this.pending.clear();
+        if (this.current != null) {
+            this.current.close();
+            this.current = null;
+        }
+        this.in.close();
+    }
+
+    private Block nextBlock() throws IOException {
+        if (this.finished) {
+            return null;
+        }
+        this.fill();
+        if (this.pending.isEmpty()) {
+            this.finished = true;
+            if (this.computedStreamCrc != this.storedStreamCrc) {
+                throw new IOException("bzip2 stream CRC mismatch");
+            }
+            return null;
+        }
+
+        Pending head = this.pending.removeFirst();
+        while (true) {
+            try {
+                final Block block = await(head);
+                this.computedStreamCrc = Integer.rotateLeft(this.computedStreamCrc, 1) ^ head.segment().crc();
+                this.fill();
+                return block;
+            } catch (final IOException e) {
+                // Most likely a false block boundary, retry with the next segment appended
+                this.fill();
+                if (this.pending.isEmpty()) {
+                    throw e;
+                }
+                final Pending next = this.pending.removeFirst();
+                next.future().cancel(false);
+                final Segment merged = head.segment().merge(next.segment());
+                head = new Pending(merged, CompletableFuture.completedFuture(null).thenApply(ignored -> prime(merged, this.level)));
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        while (this.pending.size() < this.lookahead) {
+            final Segment segment = this.nextSegment();
+            if (segment == null) {
+                return;
+            }
+            final int blockLevel = this.level;
+            this.pending.addLast(new Pending(segment, CompletableFuture.supplyAsync(() -> prime(segment, blockLevel), executor())));
+        }
+    }
+
+    private static Block await(final Pending pending) throws IOException {
+        try {
+            return pending.future().get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding bzip2 block", e);
+        } catch (final ExecutionException | CancellationException e) {
+            final Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Failed to decode bzip2 block", cause != null ? cause : e);
+        } catch (final CompletionException e) {
+            throw new IOException("Failed to decode bzip2 block", e.getCause());
+        }
+    }
+
+    private static Block prime(final Segment segment, final int level) {
+        try {
+            final InputStream stream = new BZip2CompressorInputStream(new ByteArrayInputStream(segment.toStream(level)));
+            final byte[] head = stream.readNBytes(PRIME_SIZE);
+            return new Block(head, stream);
+        } catch (final IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Scans forward to the next block boundary and returns the block before it, or {@code null} once the
+     * end-of-stream marker has been reached.
+     */
+    private Segment nextSegment() throws IOException {
+        if (this.scanned) {
+            return null;
+        }
+
+        while (true) {
+            final long magicStart = this.findMagic();
+            if (magicStart < 0) {
+                if (!this.readMore()) {
+                    throw new EOFException("Unexpected end of bzip2 stream");
+                }
+                continue;
+            }
+            final boolean endOfStream = BitWriter.readBits(this.window, magicStart - this.windowBitOffset, 48) == EOS_MAGIC;
+            this.bitPosition = magicStart + 48;
+
+            final Segment segment = this.segmentStart < 0 ? null : this.cut(this.segmentStart, magicStart);
+
+            if (endOfStream) {
+                this.storedStreamCrc = (int) this.readBits(32);
+                this.scanned = true;
+                this.window = null;
+                return segment;
+            }
+
+            this.segmentStart = magicStart;
+            this.compact();
+            if (segment != null) {
+                return segment;
+            }
+        }
+    }
+
+    /**
+     * Returns the bit position of the next block or end-of-stream magic at or after {@code bitPosition}, or -1 if
+     * the window does not contain one yet.
+     * <p>
+     * Whatever the bit alignment of the magic, the byte after its first byte is fully determined by the alignment.
+     * A lookup table on that byte yields the candidate alignments, and only those are compared against the full
+     * 48-bit value. This keeps the scan at roughly one table lookup per compressed byte.
+     */
+    private long findMagic() {
+        final long relative = this.bitPosition - this.windowBitOffset;
+        int index = (int) (relative >>> 3) + 1;
+        for (; index + 5 < this.windowLength; index++) {
+            final int candidates = MAGIC_CANDIDATES[this.window[index] & 0xFF];
+            if (candidates == 0) {
+                continue;
+            }
+            for (int alignment = 0; alignment < 8; alignment++) {
+                if ((candidates & (1 << alignment)) == 0) {
+                    continue;
+                }
+                final long windowBit = (long) (index - 1) * 8 + alignment;
+                if (windowBit < relative) {
+                    continue;
+                }
+                final long bits = BitWriter.readBits(this.window, windowBit, 48);
+                if (bits == BLOCK_MAGIC || bits == EOS_MAGIC) {
+                    return this.windowBitOffset + windowBit;
+                }
+            }
+        }
+        // Everything before the first unchecked candidate byte has been ruled out
+        this.bitPosition = Math.max(this.bitPosition, this.windowBitOffset + (long) (index - 1) * 8);
+        return -1;
+    }
+
+    private static int[] magicCandidates() {
+        final int[] table = new int[256];
+        for (final long magic : new long[]{BLOCK_MAGIC, EOS_MAGIC}) {
+            for (int alignment = 0; alignment < 8; alignment++) {
+                // With `alignment` bits of the previous data in front, the second byte holds magic bits 8-a..15-a
+                table[(int) ((magic >>> (32 + alignment)) & 0xFF)] |= 1 << alignment;
+            }
+        }
+        return table;
+    }
+
+    private long readBits(final int count) throws IOException {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            final long windowBitEnd = this.windowBitOffset + (long) this.windowLength * 8;
+            if (this.bitPosition == windowBitEnd && !this.readMore()) {
+                throw new EOFException("Unexpected end of bzip2 stream");
+            }
+            final int index = (int) ((this.bitPosition - this.windowBitOffset) >>> 3);
+            final int shift = 7 - (int) ((this.bitPosition - this.windowBitOffset) & 7);
+            value = (value << 1) | ((this.window[index] >>> shift) & 1);
+            this.bitPosition++;
+        }
+        return value;
+    }
+
+    private boolean readMore() throws IOException {
+        if (this.windowLength == this.window.length) {
+            this.window = Arrays.copyOf(this.window, this.window.length * 2);
+        }
+        final int read = this.in.read(this.window, this.windowLength, this.window.length - this.windowLength);
+        if (read <= 0) {
+            return false;
+        }
+        this.windowLength += read;
+        return true;
+    }
+
+    private Segment cut(final long startBit, final long endBit) {
+        final BitWriter writer = new BitWriter((int) ((endBit - startBit + 7) >>> 3));
+        writer.append(this.window, startBit - this.windowBitOffset, endBit - startBit);
+        final byte[] data = writer.toByteArray();
+        final int crc = (int) BitWriter.readBits(data, 48, 32);
+        return new Segment(data, endBit - startBit, crc);
+    }
+
+    private void compact() {
+        // Drop everything before the byte holding the start of the current block
+        final int drop = (int) ((this.segmentStart - this.windowBitOffset) >>> 3);
+        if (drop > 0) {
+            System.arraycopy(this.window, drop, this.window, 0, this.windowLength - drop);
+            this.windowLength -= drop;
+            this.windowBitOffset += (long) drop * 8;
+        }
+    }
+
+    private record Segment(byte[] data, long bitLength, int crc) {
+        private Segment merge(final Segment next) {
+            final BitWriter writer = new BitWriter((int) ((this.bitLength + next.bitLength + 7) >>> 3));
+            writer.append(this.data, 0, this.bitLength);
+            writer.append(next.data, 0, next.bitLength);
+            return new Segment(writer.toByteArray(), this.bitLength + next.bitLength, this.crc);
+        }
+
+        private byte[] toStream(final int level) {
+            final BitWriter writer = new BitWriter((int) ((this.bitLength + 7) >>> 3) + 16);
+            writer.write('B', 8);
+            writer.write('Z', 8);
+            writer.write('h', 8);
+            writer.write(level, 8);
+            writer.append(this.data, 0, this.bitLength);
+            writer.write(EOS_MAGIC, 48);
+            // The CRC of a single-block stream is the block CRC itself
+            writer.write(this.crc & 0xFFFFFFFFL, 32);
+            return writer.toByteArray();
+        }
+    }
+
+    private record Pending(Segment segment, CompletableFuture<Block> future) {
+    }
+
+    private static final class Block {
+        private final byte[] head;
+        private final InputStream rest;
+        private int position;
+
+        private Block(final byte[] head, final InputStream rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        private int read(final byte[] b, final int off, final int len) throws IOException {
+            if (this.position < this.head.length) {
+                final int count = Math.min(len, this.head.length - this.position);
+                System.arraycopy(this.head, this.position, b, off, count);
+                this.position += count;
+                return count;
+            }
+            return this.rest.read(b, off, len);
+        }
+
+        private void close() throws IOException {
+            this.rest.close();
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] buffer;
+        private int length;
+        private long accumulator;
+        private int bits;
+
+        private BitWriter(final int capacity) {
+            this.buffer = new byte[Math.max(16, capacity)];
+        }
+
+        private void write(final long value, final int count) {
+            for (int remaining = count; remaining > 0; ) {
+                final int take = Math.min(remaining, 32);
+                remaining -= take;
+                this.accumulator = (this.accumulator << take) | ((value >>> remaining) & ((1L << take) - 1));
+                this.bits += take;
+                while (this.bits >= 8) {
+                    this.bits -= 8;
+                    this.put((byte) (this.accumulator >>> this.bits));
+                }
+            }
+        }
+
+        private void append(final byte[] source, final long bitOffset, final long bitCount) {
+            long offset = bitOffset;
+            long remaining = bitCount;
+            if (this.bits == 0 && remaining >= 8) {
+                // Byte aligned output: every output byte is made of at most two neighbouring source bytes
+                final int bytes = (int) (remaining >>> 3);
+                final int shift = (int) (offset & 7);
+                final int from = (int) (offset >>> 3);
+                this.ensureCapacity(this.length + bytes);
+                if (shift == 0) {
+                    System.arraycopy(source, from, this.buffer, this.length, bytes);
+                } else {
+                    for (int i = 0; i < bytes; i++) {
+                        final int high = (source[from + i] & 0xFF) << shift;
+                        final int low = from + i + 1 < source.length ? (source[from + i + 1] & 0xFF) >>> (8 - shift) : 0;
+                        this.buffer[this.length + i] = (byte) (high | low);
+                    }
+                }
+                this.length += bytes;
+                offset += (long) bytes * 8;
+                remaining -= (long) bytes * 8;
+            }
+            while (remaining >= 8) {
+                this.write(readBits(source, offset, 8), 8);
+                offset += 8;
+                remaining -= 8;
+            }
+            if (remaining > 0) {
+                this.write(readBits(source, offset, (int) remaining), (int) remaining);
+            }
+        }
+
+        private static long readBits(final byte[] source, final long bitOffset, final int count) {
+            long value = 0;
+            long position = bitOffset;
+            int remaining = count;
+            while (remaining > 0) {
+                final int index = (int) (position >>> 3);
+                final int available = 8 - (int) (position & 7);
+                final int take = Math.min(available, remaining);
+                final int bitsValue = ((source[index] & 0xFF) >>> (available - take)) & ((1 << take) - 1);
+                value = (value << take) | bitsValue;
+                position += take;
+                remaining -= take;
+            }
+            return value;
+        }
+
+        private void put(final byte b) {
+            this.ensureCapacity(this.length + 1);
+            this.buffer[this.length++] = b;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(capacity, this.buffer.length * 2));
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (this.bits > 0) {
+                this.put((byte) (this.accumulator << (8 - this.bits)));
+                this.bits = 0;
+            }
+            return Arrays.copyOf(this.buffer, this.length);
+        }
+    }
+}
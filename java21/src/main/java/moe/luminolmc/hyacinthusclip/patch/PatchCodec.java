@@ -0,0 +1,35 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the control, diff and extra blocks of a bsdiff patch.
+ * <p>
+ * Implementations are discovered through {@link java.util.ServiceLoader} and selected by {@link #id()} in the
+ * optional eighth column of {@code META-INF/patches.list}.
+ */
+public interface PatchCodec {
+    String id();
+
+    /**
+     * Wraps a stream positioned at the start of one compressed block. The stream continues past the end of the block
+     * into the next one, the returned stream must not depend on hitting end of input.
+     */
+    InputStream decode(InputStream block) throws IOException;
+
+    /**
+     * Returns the heap one stream returned by {@link #decode} holds at most, used to decide how many patches may be
+     * applied at once.
+     */
+    default long footprint() {
+        return 64 * 1024;
+    }
+
+    /**
+     * Returns a variant of this codec that decodes on the calling thread only, used to retry a failed parallel decode.
+     */
+    default PatchCodec sequential() {
+        return this;
+    }
+}
@@ -0,0 +1,34 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+public final class PatchCodecs {
+    public static final String DEFAULT_CODEC = "bsdiff";
+
+    private static final Map<String, PatchCodec> CODECS = loadCodecs();
+
+    private PatchCodecs() {
+    }
+
+    private static Map<String, PatchCodec> loadCodecs() {
+        final Map<String, PatchCodec> codecs = new HashMap<>();
+        for (final PatchCodec codec : ServiceLoader.load(PatchCodec.class, PatchCodecs.class.getClassLoader())) {
+            codecs.putIfAbsent(codec.id(), codec);
+        }
+        return codecs;
+    }
+
+    public static PatchCodec get(final String id) {
+        final PatchCodec codec = CODECS.get(id);
+        if (codec == null) {
+            throw new IllegalStateException("Unknown patch codec: " + id);
+        }
+        return codec;
+    }
+
+    public static PatchCodec defaultCodec() {
+        return get(DEFAULT_CODEC);
+    }
+}
@@ -0,0 +1,138 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs patch jobs on a worker pool, admitting a job only while the sum of the memory estimates of the running jobs
+ * fits into a fixed budget. A job whose estimate exceeds the whole budget still runs, but only on its own.
+ */
+public final class PatchScheduler {
+    private final int threads;
+    private final long budget;
+    private long available;
+
+    public PatchScheduler(final int threads, final long budget) {
+        this.threads = Math.max(1, threads);
+        this.budget = Math.max(1, budget);
+        this.available = this.budget;
+    }
+
+    public static PatchScheduler fromSystemProperties() {
+        final int threads = Integer.getInteger("hyacinthusclip.patchThreads", Runtime.getRuntime().availableProcessors());
+        final long defaultBudgetMb = Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+        final long budgetMb = Long.getLong("hyacinthusclip.patchMemoryBudget", defaultBudgetMb);
+        return new PatchScheduler(threads, budgetMb * 1024 * 1024);
+    }
+
+    public void runAll(final List<Job> jobs) throws IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        if (jobs.size() == 1 || this.threads == 1) {
+            for (final Job job : jobs) {
+                job.task().run();
+            }
+            return;
+        }
+
+        // Start the largest jobs first, the small ones fill the remaining budget around them
+        final List<Job> ordered = new ArrayList<>(jobs);
+        ordered.sort(Comparator.comparingLong(Job::cost).reversed());
+
+        final AtomicInteger threadId = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, jobs.size()), r -> {
+            final Thread thread = new Thread(r, "Hyacinthusclip-Patch-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final List<Future<?>> futures = new ArrayList<>(ordered.size());
+            for (final Job job : ordered) {
+                final long cost = Math.min(job.cost(), this.budget);
+                this.acquire(cost);
+                futures.add(executor.submit(() -> {
+                    try {
+                        job.task().run();
+                    } catch (final IOException e) {
+                        throw new CompletionException(new IOException("Failed to apply patch " + job.name(), e));
+                    } finally {
+                        this.release(cost);
+                    }
+                    return null;
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                await(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void acquire(final long cost) {
+        boolean interrupted = false;
+        while (this.available < cost) {
+            try {
+                this.wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        this.available -= cost;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void release(final long cost) {
+        this.available += cost;
+        this.notifyAll();
+    }
+
+    private static void await(final Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while applying patches", e);
+        } catch (final ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @param name human readable name used in diagnostics
+     * @param cost estimated peak heap of the job in bytes, normally what its decoders hold
+     */
+    public record Job(String name, long cost, Task task) {
+    }
+
+    @FunctionalInterface
+    public interface Task {
+        void run() throws IOException;
+    }
+}
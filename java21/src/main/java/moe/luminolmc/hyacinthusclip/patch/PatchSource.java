@@ -0,0 +1,13 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens a fresh stream over the raw patch data. The patcher reads the control, diff and extra
+ * blocks through independent streams, so this may be called more than once per patch.
+ */
+@FunctionalInterface
+public interface PatchSource {
+    InputStream open() throws IOException;
+}
@@ -0,0 +1,184 @@
+package moe.luminolmc.hyacinthusclip.patch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Applies jbsdiff ({@code BSDIFF40}) patches without holding the old file, the patch or the output in the heap.
+ * <p>
+ * The old file is memory-mapped, so it has to be a file of the default file system. The control, diff and extra
+ * blocks are decoded by a {@link PatchCodec} as three independent streams over the patch data, and the output is
+ * produced in {@link #BUFFER_SIZE} chunks. Peak heap usage is a couple of buffers regardless of how large the jar being
+ * patched is.
+ */
+public final class StreamingPatcher {
+    private static final byte[] MAGIC = "BSDIFF40".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StreamingPatcher() {
+    }
+
+    public static void patch(final Path oldFile, final PatchSource patch, final OutputStream out) throws IOException {
+        patch(oldFile, patch, out, PatchCodecs.defaultCodec());
+    }
+
+    public static void patch(final Path oldFile, final PatchSource patch, final OutputStream out, final PatchCodec codec) throws IOException {
+        try (final FileChannel oldChannel = FileChannel.open(oldFile, READ)) {
+            if (oldChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to patch: " + oldFile);
+            }
+            final MappedByteBuffer old;
+            try {
+                old = oldChannel.map(FileChannel.MapMode.READ_ONLY, 0, oldChannel.size());
+            } catch (final UnsupportedOperationException e) {
+                throw new IOException("Cannot memory-map " + oldFile + ", copy it to a plain file first", e);
+            }
+            patch(old, patch, out, codec);
+        }
+    }
+
+    /**
+     * Applies a patch to an original that is already in memory, used for patches of single jar entries.
+     */
+    public static void patch(final ByteBuffer old, final PatchSource patch, final OutputStream out, final PatchCodec codec) throws IOException {
+        final Header header = readHeader(patch);
+        final long controlLength = header.controlLength();
+        final long diffLength = header.diffLength();
+        final long outputLength = header.outputLength();
+
+        try (
+                final InputStream controlIn = openBlock(patch, HEADER_SIZE, codec);
+                final InputStream diffIn = openBlock(patch, HEADER_SIZE + controlLength, codec);
+                final InputStream extraIn = openBlock(patch, HEADER_SIZE + controlLength + diffLength, codec)
+        ) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final byte[] oldBuffer = new byte[BUFFER_SIZE];
+            final int oldLength = old.capacity();
+
+            long newPointer = 0;
+            long oldPointer = 0;
+            while (newPointer < outputLength) {
+                final long diff = readOffset(controlIn);
+                final long extra = readOffset(controlIn);
+                final long seek = readOffset(controlIn);
+                if (diff < 0 || extra < 0 || newPointer + diff + extra > outputLength) {
+                    throw new IOException("Corrupt patch control block at output offset " + newPointer);
+                }
+
+                // Diff block: bytes of the new file relative to the same region of the old file
+                for (long done = 0; done < diff; ) {
+                    final int chunk = (int) Math.min(BUFFER_SIZE, diff - done);
+                    readFully(diffIn, buffer, chunk);
+                    addOld(old, oldLength, oldPointer + done, buffer, oldBuffer, chunk);
+                    out.write(buffer, 0, chunk);
+                    done += chunk;
+                }
+                newPointer += diff;
+                oldPointer += diff;
+
+                // Extra block: bytes with no counterpart in the old file, copied verbatim
+                for (long done = 0; done < extra; ) {
+                    final int chunk = (int) Math.min(BUFFER_SIZE, extra - done);
+                    readFully(extraIn, buffer, chunk);
+                    out.write(buffer, 0, chunk);
+                    done += chunk;
+                }
+                newPointer += extra;
+                oldPointer += seek;
+            }
+        }
+    }
+
+    /**
+     * Returns the heap applying a patch with {@code codec} holds at most: the decoders of the three blocks and the
+     * buffers of the patcher and of the output. The original is mapped and costs no heap.
+     */
+    public static long footprint(final PatchCodec codec) {
+        return 3 * codec.footprint() + 3L * BUFFER_SIZE;
+    }
+
+    private static Header readHeader(final PatchSource patch) throws IOException {
+        final Header header;
+        try (final InputStream headerIn = patch.open()) {
+            final byte[] magic = headerIn.readNBytes(MAGIC.length);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Patch header is missing the BSDIFF40 magic number");
+            }
+            header = new Header(readOffset(headerIn), readOffset(headerIn), readOffset(headerIn));
+        }
+        if (header.controlLength() < 0 || header.diffLength() < 0 || header.outputLength() < 0) {
+            throw new IOException("Patch header contains negative block lengths");
+        }
+        return header;
+    }
+
+    private static void addOld(
+            final ByteBuffer old,
+            final int oldLength,
+            final long oldPointer,
+            final byte[] buffer,
+            final byte[] oldBuffer,
+            final int length
+    ) {
+        // Only the part of the window that falls inside the old file contributes, matching jbsdiff
+        final long from = Math.max(oldPointer, 0);
+        final long to = Math.min(oldPointer + length, oldLength);
+        if (from >= to) {
+            return;
+        }
+
+        final int offset = (int) (from - oldPointer);
+        final int count = (int) (to - from);
+        old.get((int) from, oldBuffer, 0, count);
+        for (int i = 0; i < count; i++) {
+            buffer[offset + i] += oldBuffer[i];
+        }
+    }
+
+    private static InputStream openBlock(final PatchSource patch, final long offset, final PatchCodec codec) throws IOException {
+        final InputStream raw = patch.open();
+        try {
+            raw.skipNBytes(offset);
+            return codec.decode(raw);
+        } catch (final IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer, final int length) throws IOException {
+        if (in.readNBytes(buffer, 0, length) != length) {
+            throw new EOFException("Unexpected end of patch data");
+        }
+    }
+
+    /**
+     * Reads a bsdiff offset: 8 bytes little-endian in sign-magnitude form.
+     */
+    private static long readOffset(final InputStream in) throws IOException {
+        final byte[] buf = in.readNBytes(8);
+        if (buf.length != 8) {
+            throw new EOFException("Unexpected end of patch data");
+        }
+
+        long value = buf[7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buf[i] & 0xFF);
+        }
+        return (buf[7] & 0x80) != 0 ? -value : value;
+    }
+
+    private record Header(long controlLength, long diffLength, long outputLength) {
+    }
+}
@@ -0,0 +1,65 @@
+package moe.luminolmc.hyacinthusclip.patch.codec;
+
+import moe.luminolmc.hyacinthusclip.patch.ParallelBZip2InputStream;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The format jbsdiff produces: blocks compressed with bzip2 by default, any format commons-compress can detect is
+ * accepted as well.
+ */
+public final class BZip2PatchCodec implements PatchCodec {
+    // Decoder tables of a level 9 stream
+    private static final long SEQUENTIAL_FOOTPRINT = 5L * 1024 * 1024;
+
+    private final boolean parallel;
+
+    public BZip2PatchCodec() {
+        this(ParallelBZip2InputStream.isEnabled());
+    }
+
+    private BZip2PatchCodec(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    @Override
+    public String id() {
+        return "bsdiff";
+    }
+
+    @Override
+    public InputStream decode(final InputStream block) throws IOException {
+        final BufferedInputStream buffered = new BufferedInputStream(block);
+        if (this.parallel && isBZip2(buffered)) {
+            // All three blocks share the decoder pool, so their blocks are decoded concurrently as well
+            return new ParallelBZip2InputStream(buffered, ParallelBZip2InputStream.lookahead());
+        }
+        try {
+            return new CompressorStreamFactory().createCompressorInputStream(buffered);
+        } catch (final CompressorException e) {
+            throw new IOException("Unsupported patch block compression", e);
+        }
+    }
+
+    @Override
+    public long footprint() {
+        return this.parallel ? ParallelBZip2InputStream.footprint() : SEQUENTIAL_FOOTPRINT;
+    }
+
+    @Override
+    public PatchCodec sequential() {
+        return this.parallel ? new BZip2PatchCodec(false) : this;
+    }
+
+    private static boolean isBZip2(final BufferedInputStream in) throws IOException {
+        in.mark(3);
+        final byte[] signature = in.readNBytes(3);
+        in.reset();
+        return signature.length == 3 && signature[0] == 'B' && signature[1] == 'Z' && signature[2] == 'h';
+    }
+}
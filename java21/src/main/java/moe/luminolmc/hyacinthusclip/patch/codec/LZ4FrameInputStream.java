@@ -0,0 +1,215 @@
+package moe.luminolmc.hyacinthusclip.patch.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal decoder for one frame of the LZ4 frame format, as written by the {@code lz4} command line tool.
+ * <p>
+ * Both independent and linked blocks are supported. Header, block and content checksums are skipped rather than
+ * verified, the patch file as a whole is already covered by the SHA-256 in {@code patches.list}. Reading stops at the
+ * end mark of the frame, so nothing after it is consumed beyond the frame's own trailer.
+ */
+final class LZ4FrameInputStream extends InputStream {
+    private static final int MAGIC = 0x184D2204;
+    private static final int HISTORY_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final boolean blockChecksum;
+    private final boolean contentChecksum;
+    private final byte[] compressed;
+
+    // Decoded data; the first `historyLength` bytes are the tail of the previous block for linked matches
+    private final byte[] buffer;
+    private int historyLength;
+    private int position;
+    private int limit;
+    private boolean finished;
+
+    LZ4FrameInputStream(final InputStream in) throws IOException {
+        this.in = in;
+        if (this.readInt() != MAGIC) {
+            throw new IOException("Not an LZ4 frame");
+        }
+
+        final int flags = this.readByte();
+        final int blockDescriptor = this.readByte();
+        if ((flags >>> 6) != 1) {
+            throw new IOException("Unsupported LZ4 frame version");
+        }
+        this.blockChecksum = (flags & 0x10) != 0;
+        this.contentChecksum = (flags & 0x04) != 0;
+        final boolean contentSize = (flags & 0x08) != 0;
+        final boolean dictionaryId = (flags & 0x01) != 0;
+
+        final int maxBlockSize = switch ((blockDescriptor >>> 4) & 0x07) {
+            case 4 -> 64 * 1024;
+            case 5 -> 256 * 1024;
+            case 6 -> 1024 * 1024;
+            case 7 -> 4 * 1024 * 1024;
+            default -> throw new IOException("Invalid LZ4 block size");
+        };
+
+        // Content size, dictionary id and header checksum
+        in.skipNBytes((contentSize ? 8 : 0) + (dictionaryId ? 4 : 0) + 1);
+
+        this.compressed = new byte[maxBlockSize];
+        this.buffer = new byte[HISTORY_SIZE + maxBlockSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.ensureData()) {
+            return -1;
+        }
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.ensureData()) {
+            return -1;
+        }
+        final int count = Math.min(len, this.limit - this.position);
+        System.arraycopy(this.buffer, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    private boolean ensureData() throws IOException {
+        while (this.position == this.limit) {
+            if (this.finished || !this.readBlock()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readBlock() throws IOException {
+        final int header = this.readInt();
+        if (header == 0) {
+            if (this.contentChecksum) {
+                this.in.skipNBytes(4);
+            }
+            this.finished = true;
+            return false;
+        }
+
+        final boolean uncompressed = (header & 0x80000000) != 0;
+        final int size = header & 0x7FFFFFFF;
+        if (size > this.compressed.length) {
+            throw new IOException("LZ4 block larger than the declared maximum");
+        }
+
+        this.keepHistory();
+        if (uncompressed) {
+            this.readFully(this.buffer, this.historyLength, size);
+            this.limit = this.historyLength + size;
+        } else {
+            this.readFully(this.compressed, 0, size);
+            this.limit = this.decompress(size);
+        }
+        this.position = this.historyLength;
+
+        if (this.blockChecksum) {
+            this.in.skipNBytes(4);
+        }
+        return true;
+    }
+
+    private void keepHistory() {
+        // Slide the last 64 KiB of decoded data to the front, matches may reach back into it
+        final int keep = Math.min(HISTORY_SIZE, this.limit);
+        if (keep > 0 && this.limit != keep) {
+            System.arraycopy(this.buffer, this.limit - keep, this.buffer, 0, keep);
+        }
+        this.historyLength = keep;
+    }
+
+    private int decompress(final int size) throws IOException {
+        final byte[] src = this.compressed;
+        final byte[] dst = this.buffer;
+        int srcPos = 0;
+        int dstPos = this.historyLength;
+
+        try {
+            while (srcPos < size) {
+                final int token = src[srcPos++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int extra;
+                    do {
+                        extra = src[srcPos++] & 0xFF;
+                        literals += extra;
+                    } while (extra == 255);
+                }
+                System.arraycopy(src, srcPos, dst, dstPos, literals);
+                srcPos += literals;
+                dstPos += literals;
+
+                // The last sequence of a block carries literals only
+                if (srcPos >= size) {
+                    break;
+                }
+
+                final int offset = (src[srcPos] & 0xFF) | (src[srcPos + 1] & 0xFF) << 8;
+                srcPos += 2;
+                if (offset == 0 || offset > dstPos) {
+                    throw new IOException("Invalid LZ4 match offset");
+                }
+
+                int length = token & 0x0F;
+                if (length == 15) {
+                    int extra;
+                    do {
+                        extra = src[srcPos++] & 0xFF;
+                        length += extra;
+                    } while (extra == 255);
+                }
+                length += 4;
+
+                int from = dstPos - offset;
+                if (offset >= length) {
+                    System.arraycopy(dst, from, dst, dstPos, length);
+                    dstPos += length;
+                } else {
+                    // Overlapping match, repeats the last `offset` bytes
+                    for (int i = 0; i < length; i++) {
+                        dst[dstPos++] = dst[from++];
+                    }
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 block", e);
+        }
+        return dstPos;
+    }
+
+    private int readByte() throws IOException {
+        final int b = this.in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of LZ4 frame");
+        }
+        return b;
+    }
+
+    private int readInt() throws IOException {
+        return this.readByte() | this.readByte() << 8 | this.readByte() << 16 | this.readByte() << 24;
+    }
+
+    private void readFully(final byte[] b, final int off, final int len) throws IOException {
+        if (this.in.readNBytes(b, off, len) != len) {
+            throw new EOFException("Unexpected end of LZ4 frame");
+        }
+    }
+}
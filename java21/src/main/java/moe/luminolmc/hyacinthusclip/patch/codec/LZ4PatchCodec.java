@@ -0,0 +1,31 @@
+package moe.luminolmc.hyacinthusclip.patch.codec;
+
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * bsdiff blocks compressed as single LZ4 frames. Patches are larger than with bzip2, but decompress an order of
+ * magnitude faster.
+ */
+public final class LZ4PatchCodec implements PatchCodec {
+    // A compressed and a decompressed block at the largest block size a frame may declare, plus the history window
+    private static final long FOOTPRINT = 2 * 4L * 1024 * 1024 + 64 * 1024;
+
+    @Override
+    public String id() {
+        return "bsdiff-lz4";
+    }
+
+    @Override
+    public InputStream decode(final InputStream block) throws IOException {
+        return new LZ4FrameInputStream(new BufferedInputStream(block));
+    }
+
+    @Override
+    public long footprint() {
+        return FOOTPRINT;
+    }
+}
@@ -0,0 +1,21 @@
+package moe.luminolmc.hyacinthusclip.patch.codec;
+
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+
+/**
+ * Uncompressed bsdiff blocks. Largest patches, but patching is bound only by disk speed.
+ */
+public final class RawPatchCodec implements PatchCodec {
+    @Override
+    public String id() {
+        return "bsdiff-raw";
+    }
+
+    @Override
+    public InputStream decode(final InputStream block) {
+        return new BufferedInputStream(block);
+    }
+}
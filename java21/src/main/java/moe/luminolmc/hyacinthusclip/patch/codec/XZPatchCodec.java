@@ -0,0 +1,35 @@
+package moe.luminolmc.hyacinthusclip.patch.codec;
+
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+import org.tukaani.xz.SingleXZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * bsdiff blocks compressed as single XZ streams. Smaller than bzip2 and faster to decompress.
+ * <p>
+ * The decoder allocates the dictionary a stream declares, so blocks must be compressed with a dictionary of at most
+ * 8 MiB, which the presets up to 6 use. A block with a larger one is rejected instead of exceeding {@link #footprint()}.
+ */
+public final class XZPatchCodec implements PatchCodec {
+    // An 8 MiB dictionary plus the decoder state around it
+    private static final long FOOTPRINT = 9L * 1024 * 1024;
+
+    @Override
+    public String id() {
+        return "bsdiff-xz";
+    }
+
+    @Override
+    public InputStream decode(final InputStream block) throws IOException {
+        // Decodes exactly one stream, the block is followed by the next one
+        return new SingleXZInputStream(new BufferedInputStream(block), (int) (FOOTPRINT / 1024));
+    }
+
+    @Override
+    public long footprint() {
+        return FOOTPRINT;
+    }
+}
@@ -0,0 +1,111 @@
+package moe.luminolmc.hyacinthusclip.supervisor;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.verify.FileFingerprints;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The JDK's ahead-of-time cache for the server JVM, holding its classes already loaded and linked.
+ * <p>
+ * The cache lives in {@code aot/} in the repo dir, named after a fingerprint of the JVM, the collector and every jar on
+ * the class path with its size and modification time. Without a cache for the current fingerprint, the server runs as
+ * a training run with {@code -XX:AOTCacheOutput}, and the JVM writes the cache when it exits; later launches start
+ * with {@code -XX:AOTCache}. A patched jar or library that changes changes the fingerprint, so its stale cache is
+ * never used and is removed once a new one has been written.
+ */
+final class AotCache {
+    private static final String DIRECTORY = "aot";
+    private static final String SUFFIX = ".aot";
+    private static final String TRAINING_SUFFIX = ".training" + SUFFIX;
+
+    private final Path file;
+    private final Path training;
+
+    private AotCache(final Path dir, final String key) {
+        this.file = dir.resolve(key + SUFFIX);
+        this.training = dir.resolve(key + TRAINING_SUFFIX);
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("hyacinthusclip.supervisor.aotCache");
+    }
+
+    /**
+     * Returns the cache for a server JVM started with {@code collectorOptions} on {@code classpath}, or {@code null} if
+     * this JVM does not support AOT caches.
+     */
+    static AotCache forLaunch(final Path repoDir, final List<String> collectorOptions, final boolean compressedOops, final List<Path> classpath) {
+        if (Runtime.version().feature() < 25) {
+            Hyacinthusclip.logger.warn("AOT caches need Java 25 or newer, starting the server without one");
+            return null;
+        }
+
+        final StringBuilder description = new StringBuilder()
+                .append(System.getProperty("java.home")).append('\n')
+                .append(System.getProperty("java.vm.version")).append('\n')
+                .append(String.join(" ", collectorOptions)).append('\n')
+                // The heap size only matters for the object layout, which changes with compressed oops
+                .append(compressedOops).append('\n');
+        try {
+            for (final Path jar : classpath) {
+                description.append(FileFingerprints.describe(jar)).append('\n');
+            }
+        } catch (final IOException e) {
+            throw Util.fail("Failed to fingerprint the class path for the AOT cache", e);
+        }
+
+        return new AotCache(repoDir.resolve(DIRECTORY).toAbsolutePath(), FileFingerprints.key(description.toString()));
+    }
+
+    /**
+     * Returns the options that make the server JVM use the cache, or record it if there is none yet.
+     */
+    List<String> options() {
+        if (Files.isRegularFile(this.file)) {
+            Hyacinthusclip.logger.info("Starting the server with AOT cache {}", this.file.getFileName());
+            return List.of("-XX:AOTCache=" + this.file);
+        }
+
+        try {
+            Files.createDirectories(this.file.getParent());
+            Files.deleteIfExists(this.training);
+        } catch (final IOException e) {
+            throw Util.fail("Failed to prepare AOT cache directory " + this.file.getParent(), e);
+        }
+        Hyacinthusclip.logger.info("No AOT cache for this class path yet, this run records one when the server stops");
+        return List.of("-XX:AOTCacheOutput=" + this.training);
+    }
+
+    /**
+     * Publishes the cache a training run wrote and removes the caches of other class paths.
+     */
+    synchronized void afterExit() {
+        if (!Files.isRegularFile(this.training)) {
+            return;
+        }
+
+        try {
+            Util.moveAtomically(this.training, this.file);
+            Hyacinthusclip.logger.info("Recorded AOT cache {}", this.file.getFileName());
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to store AOT cache {}: {}", this.file, e.getMessage());
+            return;
+        }
+
+        try (final Stream<Path> files = Files.list(this.file.getParent())) {
+            for (final Path other : files.toList()) {
+                if (!other.equals(this.file)) {
+                    Files.deleteIfExists(other);
+                }
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to remove old AOT caches: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package moe.luminolmc.hyacinthusclip.supervisor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The memory and CPUs this process may use. Limits come from the process's cgroup, v2 or v1, taking the tightest
+ * limit along the hierarchy, and are capped by the physical memory and processors the JVM sees.
+ */
+record ContainerLimits(long memoryBytes, double cpus) {
+    private static final Path CGROUP_ROOT = Path.of("/sys/fs/cgroup");
+    private static final Path SELF_CGROUP = Path.of("/proc/self/cgroup");
+
+    static ContainerLimits detect() {
+        long memory = physicalMemory();
+        double cpus = Runtime.getRuntime().availableProcessors();
+
+        final List<String> lines = readLines(SELF_CGROUP);
+        for (final String line : lines) {
+            // hierarchy-id:controllers:path, v2 has a single line with no controllers
+            final String[] parts = line.split(":", 3);
+            if (parts.length != 3) {
+                continue;
+            }
+
+            if (parts[1].isEmpty()) {
+                for (final Path dir : hierarchy(CGROUP_ROOT, parts[2])) {
+                    memory = Math.min(memory, parseLimit(readFirst(dir.resolve("memory.max"))));
+                    final String[] cpuMax = readFirst(dir.resolve("cpu.max")).split(" ");
+                    if (cpuMax.length == 2) {
+                        cpus = Math.min(cpus, quota(parseLimit(cpuMax[0]), parseLimit(cpuMax[1])));
+                    }
+                }
+                continue;
+            }
+
+            for (final String controller : parts[1].split(",")) {
+                if (controller.equals("memory")) {
+                    for (final Path dir : hierarchy(CGROUP_ROOT.resolve(parts[1]), parts[2])) {
+                        memory = Math.min(memory, parseLimit(readFirst(dir.resolve("memory.limit_in_bytes"))));
+                    }
+                } else if (controller.equals("cpu")) {
+                    for (final Path dir : hierarchy(CGROUP_ROOT.resolve(parts[1]), parts[2])) {
+                        cpus = Math.min(cpus, quota(parseLimit(readFirst(dir.resolve("cpu.cfs_quota_us"))),
+                                parseLimit(readFirst(dir.resolve("cpu.cfs_period_us")))));
+                    }
+                }
+            }
+        }
+        return new ContainerLimits(memory, cpus);
+    }
+
+    /**
+     * Returns the dirs from the cgroup of this process up to the mount point. Inside a container the path is often
+     * that of the host and does not exist below the mount, then the mount point itself is the cgroup.
+     */
+    private static List<Path> hierarchy(final Path mount, final String cgroup) {
+        final Path own = mount.resolve(cgroup.startsWith("/") ? cgroup.substring(1) : cgroup).normalize();
+        if (!own.startsWith(mount) || !Files.isDirectory(own)) {
+            return Files.isDirectory(mount) ? List.of(mount) : List.of();
+        }
+
+        final List<Path> dirs = new ArrayList<>();
+        for (Path dir = own; dir != null && dir.startsWith(mount); dir = dir.getParent()) {
+            dirs.add(dir);
+        }
+        return dirs;
+    }
+
+    private static double quota(final long quota, final long period) {
+        if (quota == Long.MAX_VALUE || period == Long.MAX_VALUE || quota <= 0 || period <= 0) {
+            return Double.MAX_VALUE;
+        }
+        return (double) quota / period;
+    }
+
+    /**
+     * Parses a limit, where {@code max}, negative values and anything unreadable mean no limit.
+     */
+    private static long parseLimit(final String value) {
+        try {
+            final long limit = Long.parseLong(value.trim());
+            return limit < 0 ? Long.MAX_VALUE : limit;
+        } catch (final NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static long physicalMemory() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getTotalMemorySize();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static String readFirst(final Path file) {
+        final List<String> lines = readLines(file);
+        return lines.isEmpty() ? "" : lines.get(0);
+    }
+
+    private static List<String> readLines(final Path file) {
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            return List.of();
+        }
+    }
+}
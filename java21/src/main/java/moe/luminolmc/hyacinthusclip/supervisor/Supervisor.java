@@ -0,0 +1,251 @@
+package moe.luminolmc.hyacinthusclip.supervisor;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the server in a child JVM sized for the machine instead of in the launcher's own JVM.
+ * <p>
+ * With {@code hyacinthusclip.supervisor}, the launcher sets up the class path as usual and then starts the server's
+ * main class in a new JVM. Its heap is {@code hyacinthusclip.supervisor.heapPercent} percent (75 by default) of the
+ * memory the cgroup leaves after this process, or what is left of the launcher's own maximum heap if the memory cannot
+ * be determined; the collector follows from heap and CPU count unless {@code hyacinthusclip.supervisor.gc} names one
+ * ({@code g1}, {@code zgc}, {@code parallel} or {@code serial}). Heaps of at least 1 GiB are committed and touched up
+ * front, smaller ones grow on demand so a small container is not filled before the server needs it.
+ * {@code -D}, agent and module options given to the launcher are passed on, {@code hyacinthusclip.supervisor.jvmArgs}
+ * adds more.
+ * <p>
+ * When the child exits with one of the codes in {@code hyacinthusclip.supervisor.restartCodes} (comma separated, none
+ * by default), it is started again right away with the same command; nothing is downloaded or verified again. Any
+ * other exit code ends the launcher with that code.
+ * <p>
+ * With {@code hyacinthusclip.supervisor.aotCache} as well, the server JVM uses an {@link AotCache} for its class path.
+ */
+public final class Supervisor {
+    private static final long MIB = 1024 * 1024;
+    // Whatever is left to the launcher JVM itself besides its heap: metaspace, code cache, thread stacks
+    private static final long LAUNCHER_OVERHEAD = 128 * MIB;
+    // Below this there is no point in starting the server
+    private static final long MIN_HEAP = 64 * MIB;
+    private static final long LOW_HEAP = 512 * MIB;
+    private static final long FIXED_HEAP = 1024 * MIB;
+    // Past this the JVM cannot compress object pointers
+    private static final long COMPRESSED_OOPS_LIMIT = 32L * 1024 * MIB;
+
+    private static volatile Process child;
+    private static volatile AotCache childAotCache;
+
+    private Supervisor() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("hyacinthusclip.supervisor");
+    }
+
+    /**
+     * Runs the server until it exits with a code that is not a restart code, then exits with it. Never returns.
+     */
+    public static void run(final Path repoDir, final URL[] classpath, final String mainClass, final String[] args) {
+        final List<Path> jars = classpathFiles(classpath);
+        final Set<Integer> restartCodes = restartCodes();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(Supervisor::stopChild, "Hyacinthusclip-Supervisor-Shutdown"));
+
+        while (true) {
+            final ContainerLimits limits = ContainerLimits.detect();
+            final long heap = heapSize(limits);
+            final String gc = collector(limits, heap);
+            final AotCache aotCache = AotCache.isEnabled() ? AotCache.forLaunch(repoDir, collectorOptions(gc, heap), heap < COMPRESSED_OOPS_LIMIT, jars) : null;
+            Hyacinthusclip.logger.info("Supervising server with {} MiB heap and {} on {} CPUs ({} MiB available)",
+                    heap / MIB, gc, formatCpus(limits.cpus()), limits.memoryBytes() == Long.MAX_VALUE ? "unlimited" : limits.memoryBytes() / MIB);
+
+            final int exitCode;
+            try {
+                // A restart after a training run picks up the cache it recorded
+                childAotCache = aotCache;
+                child = new ProcessBuilder(command(heap, gc, aotCache, jars, mainClass, args)).inheritIO().start();
+                // The launcher heap grew while patching, give it back now that only the child needs memory
+                System.gc();
+                exitCode = child.waitFor();
+            } catch (final IOException e) {
+                throw Util.fail("Failed to start the server JVM", e);
+            } catch (final InterruptedException e) {
+                // Returning would start the server a second time in this JVM, the shutdown hook stops the child
+                Thread.currentThread().interrupt();
+                throw Util.fail("Interrupted while supervising the server", e);
+            }
+            if (aotCache != null) {
+                aotCache.afterExit();
+            }
+
+            if (!restartCodes.contains(exitCode)) {
+                Hyacinthusclip.logger.info("Server exited with code {}", exitCode);
+                System.exit(exitCode);
+            }
+            Hyacinthusclip.logger.info("Server exited with restart code {}, starting it again", exitCode);
+        }
+    }
+
+    private static List<String> command(final long heap, final String gc, final AotCache aotCache, final List<Path> classpath,
+                                       final String mainClass, final String[] args) {
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (heap >= FIXED_HEAP) {
+            command.add("-Xms" + heap / MIB + "m");
+        }
+        command.add("-Xmx" + heap / MIB + "m");
+        command.addAll(collectorOptions(gc, heap));
+        if (aotCache != null) {
+            command.addAll(aotCache.options());
+        }
+        command.addAll(forwardedOptions());
+        final String extra = System.getProperty("hyacinthusclip.supervisor.jvmArgs", "").trim();
+        if (!extra.isEmpty()) {
+            command.addAll(Arrays.asList(extra.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, classpath.stream().map(Path::toString).toList()));
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static long heapSize(final ContainerLimits limits) {
+        // The launcher JVM stays resident next to the child
+        final long launcher = Runtime.getRuntime().totalMemory() + LAUNCHER_OVERHEAD;
+        final long heap;
+        if (limits.memoryBytes() == Long.MAX_VALUE) {
+            // Neither the cgroup nor the JVM tell how much memory there is, take what the JVM would give itself
+            heap = Math.max(0, Runtime.getRuntime().maxMemory() - launcher) / MIB * MIB;
+        } else {
+            final long percent = Math.max(1, Math.min(100, Long.getLong("hyacinthusclip.supervisor.heapPercent", 75)));
+            heap = Math.max(0, limits.memoryBytes() - launcher) / 100 * percent / MIB * MIB;
+        }
+
+        if (heap < MIN_HEAP) {
+            throw new IllegalStateException("Only " + heap / MIB + " MiB of memory is left for the server JVM, give the "
+                    + "container more memory or run without hyacinthusclip.supervisor");
+        }
+        if (heap < LOW_HEAP) {
+            Hyacinthusclip.logger.warn("Only {} MiB of memory is left for the server JVM, it may run out of memory", heap / MIB);
+        }
+        return heap;
+    }
+
+    private static String collector(final ContainerLimits limits, final long heap) {
+        final String configured = System.getProperty("hyacinthusclip.supervisor.gc");
+        if (configured != null) {
+            return configured.toLowerCase(Locale.ROOT);
+        }
+        // Below two CPUs concurrent collectors only compete with the server threads
+        if (limits.cpus() < 2) {
+            return "serial";
+        }
+        if (heap >= 16 * 1024 * MIB && limits.cpus() >= 4) {
+            return "zgc";
+        }
+        return "g1";
+    }
+
+    private static List<String> collectorOptions(final String gc, final long heap) {
+        final List<String> options = new ArrayList<>(switch (gc) {
+            case "serial" -> List.of("-XX:+UseSerialGC");
+            case "parallel" -> List.of("-XX:+UseParallelGC");
+            case "zgc" -> List.of("-XX:+UseZGC");
+            case "g1" -> List.of(
+                    "-XX:+UseG1GC",
+                    "-XX:MaxGCPauseMillis=200",
+                    "-XX:+ParallelRefProcEnabled",
+                    "-XX:+DisableExplicitGC"
+            );
+            default -> throw new IllegalStateException("Unknown collector " + gc + " in hyacinthusclip.supervisor.gc");
+        });
+        // Pre-touching commits the whole heap at startup, only worth it when the heap is fixed anyway
+        if (heap >= FIXED_HEAP && (gc.equals("g1") || gc.equals("zgc"))) {
+            options.add("-XX:+AlwaysPreTouch");
+        }
+        return options;
+    }
+
+    /**
+     * System properties, agents and module options of this JVM. Heap and collector options are left out, those are
+     * what the supervisor decides.
+     */
+    private static List<String> forwardedOptions() {
+        final List<String> options = new ArrayList<>();
+        for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-D") || argument.startsWith("-javaagent:") || argument.startsWith("--add-")
+                    || argument.startsWith("--enable-")) {
+                options.add(argument);
+            }
+        }
+        return options;
+    }
+
+    private static List<Path> classpathFiles(final URL[] classpath) {
+        final List<Path> paths = new ArrayList<>(classpath.length);
+        for (final URL url : classpath) {
+            try {
+                paths.add(Path.of(url.toURI()));
+            } catch (final URISyntaxException | IllegalArgumentException e) {
+                throw new IllegalStateException("Supervisor mode needs a class path of local files, got " + url, e);
+            }
+        }
+        return paths;
+    }
+
+    private static Set<Integer> restartCodes() {
+        final Set<Integer> codes = new HashSet<>();
+        for (final String code : System.getProperty("hyacinthusclip.supervisor.restartCodes", "").split(",")) {
+            if (!code.isBlank()) {
+                codes.add(Integer.parseInt(code.trim()));
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Asks the server to stop like a terminal signal would and waits for it to save, killing it only after
+     * {@code hyacinthusclip.supervisor.stopTimeout} seconds (60 by default).
+     */
+    private static void stopChild() {
+        final Process process = child;
+        if (process == null || !process.isAlive()) {
+            return;
+        }
+        process.destroy();
+        try {
+            if (!process.waitFor(Long.getLong("hyacinthusclip.supervisor.stopTimeout", 60), TimeUnit.SECONDS)) {
+                Hyacinthusclip.logger.warn("Server did not stop in time, killing it");
+                process.destroyForcibly();
+            }
+        } catch (final InterruptedException e) {
+            process.destroyForcibly();
+            return;
+        }
+
+        // The loop in run() may not get to it before the JVM halts
+        final AotCache aotCache = childAotCache;
+        if (aotCache != null && !process.isAlive()) {
+            aotCache.afterExit();
+        }
+    }
+
+    private static String formatCpus(final double cpus) {
+        return cpus == Math.rint(cpus) ? String.valueOf((long) cpus) : String.format(Locale.ROOT, "%.1f", cpus);
+    }
+}
@@ -1,26 +1,37 @@
 package moe.luminolmc.hyacinthusclip.update;
 
 import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.PartialFiles;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 
 public final class AutoUpdate {
     private static final Path AUTO_UPDATE_DIR = Path.of("auto_update");
     private static final Path CORE_PATH_FILE = AUTO_UPDATE_DIR.resolve("core.path");
+    private static final Path CORE_DELTA_FILE = AUTO_UPDATE_DIR.resolve("core.delta");
     private static final String VERSION_RESOURCE = "/META-INF/hyacinthusclip-version";
 
     private static volatile Path autoUpdateCorePath;
     private static volatile boolean useAutoUpdateJar;
+    // The target jar stays open for the launcher's lifetime, through the index or, if it cannot be indexed, a JarFile
+    private static volatile CoreJarIndex targetIndex;
+    private static volatile JarFile targetJar;
+    // Index of the running launcher jar, only opened to extract stored entries from it
+    private static volatile CoreJarIndex launcherIndex;
+    private static volatile boolean launcherIndexFailed;
 
     private AutoUpdate() {
     }
@@ -28,18 +39,22 @@ public final class AutoUpdate {
     public static void init() {
         autoUpdateCorePath = null;
         useAutoUpdateJar = false;
+        closeTargetJar();
+
+        if (Files.isRegularFile(CORE_DELTA_FILE)) {
+            CoreDelta.apply(AUTO_UPDATE_DIR, CORE_DELTA_FILE, CORE_PATH_FILE);
+        }
 
         if (!Files.isDirectory(AUTO_UPDATE_DIR) || !Files.isRegularFile(CORE_PATH_FILE)) {
             return;
         }
 
-        try (BufferedReader reader = Files.newBufferedReader(CORE_PATH_FILE, StandardCharsets.UTF_8)) {
-            final String configuredPath = reader.readLine();
-            if (configuredPath == null || configuredPath.isBlank()) {
+        try {
+            final Path jarPath = readConfiguredCorePath();
+            if (jarPath == null) {
                 return;
             }
 
-            final Path jarPath = Path.of(configuredPath.trim()).toAbsolutePath().normalize();
             if (!Files.isRegularFile(jarPath)) {
                 Hyacinthusclip.logger.error("The specified auto-update jar {} does not exist.", jarPath);
                 System.exit(1);
@@ -50,6 +65,7 @@ public final class AutoUpdate {
             }
 
             autoUpdateCorePath = jarPath;
+            openTargetJar(jarPath);
             useAutoUpdateJar = true;
 
             if (!detectionHyacinthusclipVersion()) {
@@ -64,6 +80,27 @@ public final class AutoUpdate {
         }
     }
 
+    /**
+     * Returns the jar currently named in {@code core.path}, which may differ from the one this launch uses.
+     */
+    static Path readConfiguredCorePath() throws IOException {
+        if (!Files.isRegularFile(CORE_PATH_FILE)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(CORE_PATH_FILE, StandardCharsets.UTF_8)) {
+            final String configuredPath = reader.readLine();
+            if (configuredPath == null || configuredPath.isBlank()) {
+                return null;
+            }
+            return Path.of(configuredPath.trim()).toAbsolutePath().normalize();
+        }
+    }
+
+    static Path getAutoUpdateDir() {
+        return AUTO_UPDATE_DIR;
+    }
+
     public static InputStream getResourceAsStreamFromTargetJar(String name) {
         final String resourcePath = normalizeLookupPath(name);
 
@@ -71,21 +108,136 @@ public final class AutoUpdate {
             return AutoUpdate.class.getResourceAsStream("/" + resourcePath);
         }
 
-        try (JarFile targetJar = new JarFile(autoUpdateCorePath.toFile())) {
-            final JarEntry entry = targetJar.getJarEntry(resourcePath);
-            if (entry == null) {
-                return null;
+        try {
+            final CoreJarIndex index = targetIndex;
+            if (index != null) {
+                return index.open(resourcePath);
             }
 
-            try (InputStream stream = targetJar.getInputStream(entry)) {
-                return new ByteArrayInputStream(stream.readAllBytes());
-            }
+            final JarFile jar = targetJar;
+            final ZipEntry entry = jar.getEntry(resourcePath);
+            return entry == null ? null : jar.getInputStream(entry);
         } catch (IOException e) {
             Hyacinthusclip.logger.error(e, "Failed to get resource {} from target jar {}.", resourcePath, autoUpdateCorePath);
             return null;
         }
     }
 
+    /**
+     * Extracts {@code name} from the target jar to {@code file} if the jar stores it uncompressed. The entry is
+     * verified against {@code hash} in place and then copied by the kernel, so it never passes through the heap.
+     *
+     * @return {@code false} if the entry is missing or compressed and has to be read through
+     * {@link #getResourceAsStreamFromTargetJar}
+     * @throws IOException if the entry does not match {@code hash} or cannot be copied
+     */
+    public static boolean extractStoredFromTargetJar(String name, Path file, byte[] hash) throws IOException {
+        final String resourcePath = normalizeLookupPath(name);
+        final CoreJarIndex index = useAutoUpdateJar ? targetIndex : getLauncherIndex();
+        if (index == null) {
+            return false;
+        }
+
+        final ByteBuffer content = index.stored(resourcePath);
+        if (content == null) {
+            return false;
+        }
+        if (!Arrays.equals(hash, Hashing.sha256(content))) {
+            throw new IOException("Hash check failed for " + resourcePath + " stored in " + getTargetJarPath());
+        }
+
+        final Path partial = PartialFiles.partialFile(file);
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            index.transferTo(resourcePath, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        PartialFiles.publish(partial, file, hash);
+        return true;
+    }
+
+    private static CoreJarIndex getLauncherIndex() {
+        CoreJarIndex index = launcherIndex;
+        if (index == null && !launcherIndexFailed) {
+            synchronized (AutoUpdate.class) {
+                index = launcherIndex;
+                if (index == null && !launcherIndexFailed) {
+                    final Path launcherJar = getCurrentLauncherJarPath();
+                    try {
+                        // Running from an exploded class directory in development
+                        if (launcherJar == null || !Files.isRegularFile(launcherJar)) {
+                            throw new IOException("Launcher is not running from a jar");
+                        }
+                        index = CoreJarIndex.open(launcherJar);
+                        launcherIndex = index;
+                    } catch (IOException e) {
+                        Hyacinthusclip.logger.debug("Not extracting stored entries directly from {}: {}", launcherJar, e.getMessage());
+                        launcherIndexFailed = true;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private static void openTargetJar(Path jarPath) throws IOException {
+        try {
+            targetIndex = CoreJarIndex.open(jarPath);
+        } catch (IOException e) {
+            Hyacinthusclip.logger.warn("Failed to index auto-update jar {}, reading it through JarFile instead: {}", jarPath, e.getMessage());
+            targetJar = new JarFile(jarPath.toFile());
+        }
+    }
+
+    private static void closeTargetJar() {
+        // The mapping itself is released by the garbage collector once no stream uses it anymore
+        final CoreJarIndex index = targetIndex;
+        final JarFile jar = targetJar;
+        targetIndex = null;
+        targetJar = null;
+        try {
+            if (index != null) {
+                index.close();
+            }
+            if (jar != null) {
+                jar.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to read from it
+        }
+    }
+
+    /**
+     * Closes the jars resources are read from, once the launcher is done with them. Nothing may be read from the target
+     * jar afterwards.
+     */
+    public static void release() {
+        closeTargetJar();
+        synchronized (AutoUpdate.class) {
+            final CoreJarIndex index = launcherIndex;
+            launcherIndex = null;
+            launcherIndexFailed = true;
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    // Nothing left to read from it
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the jar resources are read from: the auto-update jar if one is in use, the running launcher otherwise.
+     */
+    public static Path getTargetJarPath() {
+        if (useAutoUpdateJar && autoUpdateCorePath != null) {
+            return autoUpdateCorePath;
+        }
+        return getCurrentLauncherJarPath();
+    }
+
     private static boolean detectionHyacinthusclipVersion() {
         if (Boolean.getBoolean("hyacinthusclip.skip-version-check")
                 || Boolean.getBoolean("hyacinthusclip.skip-hyacinthusclip-version-check")) {
@@ -125,7 +277,7 @@ public final class AutoUpdate {
         }
     }
 
-    private static Path getCurrentLauncherJarPath() {
+    public static Path getCurrentLauncherJarPath() {
         try {
             if (Hyacinthusclip.class.getProtectionDomain().getCodeSource() == null) {
                 return null;
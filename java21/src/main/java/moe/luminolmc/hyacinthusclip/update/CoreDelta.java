@@ -0,0 +1,133 @@
+package moe.luminolmc.hyacinthusclip.update;
+
+import moe.luminolmc.hyacinthusclip.Housekeeping;
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodec;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodecs;
+import moe.luminolmc.hyacinthusclip.patch.StreamingPatcher;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.VerifyingOutputStream;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Rebuilds the auto-update core jar from a bsdiff patch instead of shipping the whole jar.
+ * <p>
+ * {@code auto_update/core.delta} holds a single line {@code baseHash<TAB>patch<TAB>targetHash[<TAB>codec]}. The patch
+ * path is relative to {@code auto_update/}, the hashes are SHA-256 and the codec defaults to
+ * {@value PatchCodecs#DEFAULT_CODEC}. The base is whichever of the current core jar and the running launcher jar
+ * matches {@code baseHash}. The new jar is written as {@code core-<targetHash>.jar}, verified while it is written,
+ * and only then {@code core.path} is switched to it and the delta removed. The patch is removed once the server runs.
+ */
+final class CoreDelta {
+    private static final String JAR_PREFIX = "core-";
+
+    private CoreDelta() {
+    }
+
+    static void apply(final Path autoUpdateDir, final Path deltaFile, final Path corePathFile) {
+        try {
+            final String line = Files.readString(deltaFile, StandardCharsets.UTF_8).trim();
+            final String[] parts = line.split("\t");
+            if (parts.length < 3 || parts.length > 4) {
+                throw new IllegalStateException("Invalid delta description in " + deltaFile + ": " + line);
+            }
+
+            final byte[] baseHash = HexFormat.of().parseHex(parts[0]);
+            final Path patchFile = autoUpdateDir.resolve(parts[1]);
+            final byte[] targetHash = HexFormat.of().parseHex(parts[2]);
+            final PatchCodec codec = PatchCodecs.get(parts.length == 4 ? parts[3] : PatchCodecs.DEFAULT_CODEC);
+
+            final Path target = autoUpdateDir.resolve(JAR_PREFIX + parts[2].substring(0, 16) + ".jar").toAbsolutePath().normalize();
+            if (!Util.isFileValid(target, targetHash)) {
+                final Path base = findBase(corePathFile, baseHash);
+                if (base == null) {
+                    throw new IllegalStateException("Neither the current core jar nor the launcher jar matches the base of " + deltaFile);
+                }
+                if (!Files.isRegularFile(patchFile)) {
+                    throw new IllegalStateException("Delta patch " + patchFile + " does not exist");
+                }
+
+                Hyacinthusclip.logger.info("Rebuilding auto-update core jar from {} with delta {}", base, patchFile.getFileName());
+                final VerifyingOutputStream out = new VerifyingOutputStream(target, targetHash);
+                try (out) {
+                    StreamingPatcher.patch(base, () -> Files.newInputStream(patchFile), out, codec);
+                }
+                if (!out.matches()) {
+                    throw new IllegalStateException("Core jar rebuilt from " + patchFile + " does not match the target hash");
+                }
+                // core.path must never name a jar that has not reached the disk
+                try (final FileChannel channel = FileChannel.open(target, WRITE)) {
+                    channel.force(true);
+                }
+            }
+
+            final Path partial = corePathFile.resolveSibling(corePathFile.getFileName() + ".tmp");
+            Files.writeString(partial, target + System.lineSeparator(), StandardCharsets.UTF_8);
+            Util.moveAtomically(partial, corePathFile);
+            Files.delete(deltaFile);
+            Housekeeping.defer("remove-old-core-jars", () -> removeOldJars(autoUpdateDir, target, patchFile));
+
+            Hyacinthusclip.logger.info("Auto-update core jar switched to {}", target);
+        } catch (final IOException | RuntimeException e) {
+            throw Util.fail("Failed to apply auto-update delta " + deltaFile, e);
+        }
+    }
+
+    private static Path findBase(final Path corePathFile, final byte[] baseHash) throws IOException {
+        final List<Path> candidates = new ArrayList<>(2);
+        if (Files.isRegularFile(corePathFile)) {
+            final String configured = Files.readString(corePathFile, StandardCharsets.UTF_8).trim();
+            if (!configured.isEmpty()) {
+                candidates.add(Path.of(configured).toAbsolutePath().normalize());
+            }
+        }
+        final Path launcherJar = AutoUpdate.getCurrentLauncherJarPath();
+        if (launcherJar != null) {
+            candidates.add(launcherJar);
+        }
+
+        for (final Path candidate : candidates) {
+            if (Files.isRegularFile(candidate) && Hashing.matches(candidate, baseHash)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Jars rebuilt by earlier deltas are not needed once {@code core.path} points past them, and neither is the patch
+     * the current one was rebuilt from.
+     */
+    private static void removeOldJars(final Path autoUpdateDir, final Path keep, final Path patchFile) {
+        try {
+            if (!patchFile.toAbsolutePath().normalize().equals(keep)) {
+                Files.deleteIfExists(patchFile);
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to remove auto-update delta patch {}: {}", patchFile, e.getMessage());
+        }
+
+        try (final Stream<Path> files = Files.list(autoUpdateDir)) {
+            for (final Path file : files.toList()) {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(JAR_PREFIX) && name.endsWith(".jar") && !file.toAbsolutePath().normalize().equals(keep)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to remove old auto-update core jars: {}", e.getMessage());
+        }
+    }
+}
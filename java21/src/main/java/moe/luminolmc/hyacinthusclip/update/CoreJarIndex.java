@@ -0,0 +1,236 @@
+package moe.luminolmc.hyacinthusclip.update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Read-only view of a jar that is mapped into memory once and indexed by entry name. Entries are served as streams over
+ * slices of the mapping: stored entries without any copy, deflated ones through an {@link Inflater}. Stored entries can
+ * also be copied to a file by {@link #transferTo}, which the kernel performs without passing the data through the heap.
+ * <p>
+ * Only plain zip files are supported; ZIP64 archives and archives larger than 2 GiB are rejected with an
+ * {@link IOException} so the caller can fall back to {@link java.util.jar.JarFile}.
+ */
+final class CoreJarIndex {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final Map<String, Entry> entries;
+
+    private CoreJarIndex(final Path file, final FileChannel channel, final MappedByteBuffer data, final Map<String, Entry> entries) {
+        this.file = file;
+        this.channel = channel;
+        this.data = data;
+        this.entries = entries;
+    }
+
+    static CoreJarIndex open(final Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Jar too large to map: " + file);
+            }
+            final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            return new CoreJarIndex(file, channel, data, readCentralDirectory(file, data));
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void close() throws IOException {
+        this.channel.close();
+    }
+
+    private static Map<String, Entry> readCentralDirectory(final Path file, final ByteBuffer data) throws IOException {
+        final int end = findEnd(data);
+        if (end < 0) {
+            throw new IOException("No end of central directory in " + file);
+        }
+
+        final int count = data.getShort(end + 10) & 0xFFFF;
+        final long size = data.getInt(end + 12) & 0xFFFFFFFFL;
+        final long offset = data.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported: " + file);
+        }
+        if (offset + size > end) {
+            throw new IOException("Corrupt central directory in " + file);
+        }
+
+        final Map<String, Entry> entries = new HashMap<>(count * 2);
+        int position = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (data.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Corrupt central directory entry in " + file);
+            }
+
+            final int method = data.getShort(position + 10) & 0xFFFF;
+            final long compressedSize = data.getInt(position + 20) & 0xFFFFFFFFL;
+            final long uncompressedSize = data.getInt(position + 24) & 0xFFFFFFFFL;
+            final int nameLength = data.getShort(position + 28) & 0xFFFF;
+            final int extraLength = data.getShort(position + 30) & 0xFFFF;
+            final int commentLength = data.getShort(position + 32) & 0xFFFF;
+            final long localHeader = data.getInt(position + 42) & 0xFFFFFFFFL;
+            if (compressedSize == 0xFFFFFFFFL || uncompressedSize == 0xFFFFFFFFL || localHeader == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported: " + file);
+            }
+
+            final byte[] name = new byte[nameLength];
+            data.get(position + CENTRAL_HEADER_SIZE, name);
+            entries.put(new String(name, StandardCharsets.UTF_8), new Entry(method, (int) compressedSize, uncompressedSize, (int) localHeader));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static int findEnd(final ByteBuffer data) {
+        // The end record is followed by a comment of at most 64 KiB
+        final int last = data.capacity() - END_SIZE;
+        final int first = Math.max(0, last - 0xFFFF);
+        for (int position = last; position >= first; position--) {
+            if (data.getInt(position) == END_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    boolean contains(final String name) {
+        return this.entries.containsKey(name);
+    }
+
+    /**
+     * Returns a stream over the content of {@code name}, or {@code null} if the jar has no such entry.
+     */
+    InputStream open(final String name) throws IOException {
+        final Entry entry = this.entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        final ByteBuffer raw = this.data.slice(this.dataOffset(name, entry), entry.compressedSize());
+        return switch (entry.method()) {
+            case STORED -> new BufferInputStream(raw);
+            case DEFLATED -> new InflaterInputStream(new BufferInputStream(raw), new Inflater(true), 8192) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!this.closed) {
+                        this.closed = true;
+                        this.inf.end();
+                    }
+                    super.close();
+                }
+            };
+            default -> throw new IOException("Unsupported compression method " + entry.method() + " for " + name + " in " + this.file);
+        };
+    }
+
+    /**
+     * Returns the content of {@code name} if it is stored uncompressed, {@code null} otherwise.
+     */
+    ByteBuffer stored(final String name) throws IOException {
+        final Entry entry = this.entries.get(name);
+        if (entry == null || entry.method() != STORED) {
+            return null;
+        }
+        return this.data.slice(this.dataOffset(name, entry), entry.compressedSize());
+    }
+
+    /**
+     * Copies the stored entry {@code name} to the current position of {@code target}.
+     */
+    void transferTo(final String name, final FileChannel target) throws IOException {
+        final Entry entry = this.entries.get(name);
+        if (entry == null || entry.method() != STORED) {
+            throw new IOException(name + " is not a stored entry of " + this.file);
+        }
+
+        final long start = this.dataOffset(name, entry);
+        final long end = start + entry.compressedSize();
+        for (long position = start; position < end; ) {
+            final long transferred = this.channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of " + this.file + " while copying " + name);
+            }
+            position += transferred;
+        }
+    }
+
+    private int dataOffset(final String name, final Entry entry) throws IOException {
+        final int header = entry.localHeader();
+        if (this.data.getInt(header) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Corrupt local header for " + name + " in " + this.file);
+        }
+        // The local name and extra field lengths may differ from the central directory ones
+        final int nameLength = this.data.getShort(header + 26) & 0xFFFF;
+        final int extraLength = this.data.getShort(header + 28) & 0xFFFF;
+        return header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private record Entry(int method, int compressedSize, long size, int localHeader) {
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package moe.luminolmc.hyacinthusclip.update;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.verify.Durability;
+import moe.luminolmc.hyacinthusclip.verify.FileFingerprints;
+import moe.luminolmc.hyacinthusclip.verify.StampManifest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Prepares the class path of the next core jar while the server is still running on the current one.
+ * <p>
+ * With {@code hyacinthusclip.prestage} set, a low-priority daemon thread checks {@code auto_update/core.path} every
+ * {@code hyacinthusclip.prestageInterval} seconds (60 by default). Once it names a jar other than the one in use, that
+ * jar is run in patch-only mode in a child process, with {@code auto_update/staging/<key>} as its repo dir. On the next
+ * launch with that jar, {@link #adopt} moves the staged files into the real repo dir together with their stamps, so
+ * class path setup finds everything already verified in place.
+ */
+public final class CoreStaging {
+    private static final String DIRECTORY = "staging";
+    private static final String[] STAGED_DIRECTORIES = {"cache", "versions", "libraries"};
+    // Patching is streamed and needs little heap, the child must not claim as much as the server does
+    private static final String CHILD_HEAP = "-Xmx512m";
+
+    private static final Set<String> attempted = new HashSet<>();
+
+    private CoreStaging() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("hyacinthusclip.prestage");
+    }
+
+    public static void start() {
+        final long interval = Math.max(1, Long.getLong("hyacinthusclip.prestageInterval", 60));
+        final Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.SECONDS.sleep(interval);
+                    stagePending();
+                } catch (final InterruptedException e) {
+                    return;
+                } catch (final RuntimeException e) {
+                    Hyacinthusclip.logger.warn("Failed to pre-stage the pending core jar: {}", e.getMessage());
+                }
+            }
+        }, "Hyacinthusclip-Prestage");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static void stagePending() throws InterruptedException {
+        final Path pending;
+        final String key;
+        try {
+            pending = AutoUpdate.readConfiguredCorePath();
+            if (pending == null || !Files.isRegularFile(pending) || isInUse(pending)) {
+                return;
+            }
+            key = key(pending);
+        } catch (final IOException e) {
+            return;
+        }
+
+        final Path stagingDir = stagingRoot().resolve(key);
+        // A failed attempt is not retried until the jar changes again
+        if (!attempted.add(key) || isComplete(stagingDir)) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(stagingDir);
+            Hyacinthusclip.logger.info("Pre-staging pending core jar {}", pending);
+            final Process process = new ProcessBuilder(command(pending, stagingDir))
+                    .redirectErrorStream(true)
+                    .redirectOutput(stagingDir.resolve("prestage.log").toFile())
+                    .start();
+            // A child left running past shutdown would race the next launch for the same files
+            final Thread killChild = new Thread(process::destroy);
+            Runtime.getRuntime().addShutdownHook(killChild);
+            final int exitCode;
+            try {
+                exitCode = process.waitFor();
+            } finally {
+                Runtime.getRuntime().removeShutdownHook(killChild);
+            }
+            if (exitCode != 0 || !isComplete(stagingDir)) {
+                Hyacinthusclip.logger.warn("Pre-staging {} failed with exit code {}, see {}", pending, exitCode, stagingDir.resolve("prestage.log"));
+                return;
+            }
+            removeStaging(key);
+            Hyacinthusclip.logger.info("Pre-staged core jar {}, it will be used on the next restart", pending);
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to pre-stage {}: {}", pending, e.getMessage());
+        }
+    }
+
+    private static List<String> command(final Path jar, final Path stagingDir) {
+        final List<String> command = new ArrayList<>();
+        // Unix only; elsewhere the child runs at normal priority
+        for (final String nice : new String[]{"/usr/bin/nice", "/bin/nice"}) {
+            if (Files.isExecutable(Path.of(nice))) {
+                command.add(nice);
+                command.add("-n");
+                command.add("19");
+                break;
+            }
+        }
+
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add(CHILD_HEAP);
+        // Options that decide what the class path resolves to have to match this launch
+        for (final String name : System.getProperties().stringPropertyNames()) {
+            if ((name.startsWith("hyacinthusclip.") || name.startsWith("leavesclip.") || name.startsWith("paperclip."))
+                    && !name.equals("hyacinthusclip.prestage") && !name.equals("hyacinthusclip.durability")
+                    && !name.equals("hyacinthusclip.slots") && !name.endsWith(".patchonly")
+                    && !name.endsWith(".disable.auto-update")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dhyacinthusclip.patchonly=true");
+        // The child is the pending jar itself and must not apply deltas or switch core.path on its own
+        command.add("-Dhyacinthusclip.disable.auto-update=true");
+        // The commit marker is what tells a completed staging dir apart
+        command.add("-Dhyacinthusclip.durability=batch");
+        // Staged files are moved into whatever repo dir the next launch uses, slot or not
+        command.add("-DbundlerRepoDir=" + stagingDir.toAbsolutePath());
+        command.add("-jar");
+        command.add(jar.toString());
+        return command;
+    }
+
+    /**
+     * Moves the files staged for the jar this launch runs on into {@code repoDir} and records their stamps, then
+     * removes all staging dirs. Does nothing if there is no completed staging dir for it.
+     */
+    public static void adopt(final Path repoDir, final StampManifest stamps) {
+        final Path stagingRoot = stagingRoot();
+        if (!Files.isDirectory(stagingRoot)) {
+            return;
+        }
+
+        final Path target = AutoUpdate.getTargetJarPath();
+        try {
+            final Path stagingDir = target == null ? null : stagingRoot.resolve(key(target));
+            if (stagingDir != null && isComplete(stagingDir)) {
+                final int adopted = moveStaged(stagingDir, repoDir, stamps);
+                Hyacinthusclip.logger.info("Adopted {} pre-staged files for {}", adopted, target.getFileName());
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to adopt pre-staged files, they will be prepared again: {}", e.getMessage());
+        }
+        removeStaging(null);
+    }
+
+    private static int moveStaged(final Path stagingDir, final Path repoDir, final StampManifest stamps) throws IOException {
+        final StampManifest staged = StampManifest.load(stagingDir);
+        int adopted = 0;
+        for (final String dir : STAGED_DIRECTORIES) {
+            final Path source = stagingDir.resolve(dir);
+            if (!Files.isDirectory(source)) {
+                continue;
+            }
+
+            final List<Path> files;
+            try (final Stream<Path> walk = Files.walk(source)) {
+                files = walk.filter(Files::isRegularFile).toList();
+            }
+            for (final Path file : files) {
+                // Only files the child verified; anything else is left to the regular setup
+                final byte[] hash = staged.verifiedHash(file);
+                if (hash == null) {
+                    continue;
+                }
+
+                final Path destination = repoDir.resolve(dir).resolve(source.relativize(file).toString());
+                Files.createDirectories(destination.getParent());
+                // A move keeps size, modification time and file key, so the stamp stays valid
+                Util.moveAtomically(file, destination);
+                Durability.published(destination);
+                stamps.record(destination, hash);
+                adopted++;
+            }
+        }
+        return adopted;
+    }
+
+    /**
+     * The child commits its repo dir only after it resolved and verified the whole class path.
+     */
+    private static boolean isComplete(final Path stagingDir) {
+        return Files.isRegularFile(stagingDir.resolve(Durability.MARKER));
+    }
+
+    private static boolean isInUse(final Path jar) {
+        final Path current = AutoUpdate.getTargetJarPath();
+        try {
+            return current != null && Files.isSameFile(current, jar);
+        } catch (final IOException e) {
+            return jar.equals(current);
+        }
+    }
+
+    /**
+     * Identifies a core jar by its {@link FileFingerprints} key, cheap enough to compute on every check.
+     */
+    private static String key(final Path jar) throws IOException {
+        return FileFingerprints.key(jar);
+    }
+
+    private static Path stagingRoot() {
+        return AutoUpdate.getAutoUpdateDir().resolve(DIRECTORY);
+    }
+
+    /**
+     * Removes every staging dir except {@code keep}.
+     */
+    private static void removeStaging(final String keep) {
+        final Path stagingRoot = stagingRoot();
+        if (!Files.isDirectory(stagingRoot)) {
+            return;
+        }
+
+        try (final Stream<Path> dirs = Files.list(stagingRoot)) {
+            for (final Path dir : dirs.toList()) {
+                if (keep != null && dir.getFileName().toString().equals(keep)) {
+                    continue;
+                }
+                Util.deleteRecursively(dir);
+            }
+            if (keep == null) {
+                Files.deleteIfExists(stagingRoot);
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to clean up staging dirs in {}: {}", stagingRoot, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package moe.luminolmc.hyacinthusclip.update;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.verify.Durability;
+import moe.luminolmc.hyacinthusclip.verify.Hashing;
+import moe.luminolmc.hyacinthusclip.verify.StampManifest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Gives every launcher build its own repo dir, so switching between builds never overwrites the artifacts of another.
+ * <p>
+ * With {@code hyacinthusclip.slots=N}, artifacts go to {@code slots/<build>/} in the bundler repo dir instead of the
+ * repo dir itself. The build key is derived from the patch, version and library lists of the target jar, so two jars
+ * that resolve to the same class path share a slot. {@value #POINTER} lists the slots most recently used first; it is
+ * replaced atomically once a slot has been set up completely, and only the first N slots in it are kept. Going back
+ * to a build that still has its slot therefore costs no download and no patching.
+ * <p>
+ * A new slot is seeded with hard links to the downloaded files of the active slot, which most builds share.
+ */
+public final class InstallSlots {
+    private static final String DIRECTORY = "slots";
+    private static final String POINTER = "active";
+    private static final String[] BUILD_RESOURCES = {
+            "/META-INF/patches.list", "/META-INF/versions.list", "/META-INF/libraries.list", "/META-INF/download-context"
+    };
+    // Patched jars differ between builds, only files that are downloaded as is are worth sharing
+    private static final String[] SHARED_DIRECTORIES = {"cache", "libraries"};
+
+    private static volatile Path slotDir;
+    private static volatile boolean created;
+
+    private InstallSlots() {
+    }
+
+    public static boolean isEnabled() {
+        return keep() > 0;
+    }
+
+    private static int keep() {
+        return Integer.getInteger("hyacinthusclip.slots", 0);
+    }
+
+    /**
+     * Returns the slot of the target jar below {@code baseDir}, creating it if needed.
+     */
+    public static Path repoDir(final Path baseDir) {
+        Path result = slotDir;
+        if (result == null) {
+            synchronized (InstallSlots.class) {
+                result = slotDir;
+                if (result == null) {
+                    result = baseDir.resolve(DIRECTORY).resolve(buildKey());
+                    try {
+                        created = Files.notExists(result);
+                        Files.createDirectories(result);
+                    } catch (final IOException e) {
+                        throw Util.fail("Failed to create install slot " + result, e);
+                    }
+                    slotDir = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String buildKey() {
+        final MessageDigest digest = Hashing.newDigest();
+        for (final String resource : BUILD_RESOURCES) {
+            try (final InputStream in = AutoUpdate.getResourceAsStreamFromTargetJar(resource)) {
+                digest.update(resource.getBytes(StandardCharsets.UTF_8));
+                if (in != null) {
+                    digest.update(Hashing.sha256(in));
+                }
+            } catch (final IOException e) {
+                throw Util.fail("Failed to read " + resource + " to identify the install slot", e);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /**
+     * Hard links the downloaded files of the active slot into a slot that was just created, together with their
+     * stamps. Files that cannot be linked, for example across file systems, are simply downloaded again.
+     */
+    public static void seed(final Path repoDir, final StampManifest stamps) {
+        if (!created) {
+            return;
+        }
+        created = false;
+
+        final Path slotsDir = repoDir.getParent();
+        final List<String> order = readPointer(slotsDir);
+        if (order.isEmpty()) {
+            return;
+        }
+        final Path activeDir = slotsDir.resolve(order.get(0));
+        if (activeDir.equals(repoDir) || !Files.isRegularFile(activeDir.resolve(Durability.MARKER))) {
+            return;
+        }
+
+        final StampManifest activeStamps = StampManifest.load(activeDir);
+        int linked = 0;
+        try {
+            for (final String dir : SHARED_DIRECTORIES) {
+                final Path source = activeDir.resolve(dir);
+                if (!Files.isDirectory(source)) {
+                    continue;
+                }
+
+                final List<Path> files;
+                try (final Stream<Path> walk = Files.walk(source)) {
+                    files = walk.filter(Files::isRegularFile).toList();
+                }
+                for (final Path file : files) {
+                    final byte[] hash = activeStamps.verifiedHash(file);
+                    if (hash == null) {
+                        continue;
+                    }
+
+                    // Artifacts are only ever replaced, never written in place, so a shared inode is never modified
+                    final Path link = repoDir.resolve(dir).resolve(source.relativize(file).toString());
+                    Files.createDirectories(link.getParent());
+                    try {
+                        Files.createLink(link, file);
+                    } catch (final FileAlreadyExistsException e) {
+                        continue;
+                    }
+                    Durability.published(link);
+                    stamps.record(link, hash);
+                    linked++;
+                }
+            }
+        } catch (final IOException | UnsupportedOperationException e) {
+            Hyacinthusclip.logger.warn("Stopped seeding install slot from {}: {}", activeDir.getFileName(), e.getMessage());
+        }
+
+        if (linked > 0) {
+            Hyacinthusclip.logger.info("Seeded install slot with {} files from {}", linked, activeDir.getFileName());
+        }
+    }
+
+    /**
+     * Makes the slot of this launch the active one and removes slots beyond the configured number. Call once the slot
+     * is set up completely, before the final {@link Durability#commit()}.
+     */
+    public static void activate() {
+        final Path current = slotDir;
+        if (current == null) {
+            return;
+        }
+
+        final Path slotsDir = current.getParent();
+        final String key = current.getFileName().toString();
+        final List<String> order = readPointer(slotsDir);
+        if (!order.isEmpty() && order.get(0).equals(key)) {
+            return;
+        }
+
+        order.remove(key);
+        order.add(0, key);
+        final List<String> kept = new ArrayList<>(order.subList(0, Math.min(order.size(), keep())));
+
+        final Path pointer = slotsDir.resolve(POINTER);
+        final Path temp = slotsDir.resolve(POINTER + ".tmp");
+        try {
+            Files.write(temp, kept, StandardCharsets.UTF_8);
+            Util.moveAtomically(temp, pointer);
+            Durability.published(pointer);
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to update active install slot: {}", e.getMessage());
+            return;
+        }
+        Hyacinthusclip.logger.info("Install slot {} is now active", key);
+
+        // Slots no longer listed, including ones abandoned half way, are removed only after the pointer moved on
+        try (final Stream<Path> dirs = Files.list(slotsDir)) {
+            for (final Path dir : dirs.filter(Files::isDirectory).toList()) {
+                if (!kept.contains(dir.getFileName().toString())) {
+                    Util.deleteRecursively(dir);
+                }
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to remove old install slots: {}", e.getMessage());
+        }
+    }
+
+    private static List<String> readPointer(final Path slotsDir) {
+        final Path pointer = slotsDir.resolve(POINTER);
+        if (!Files.isRegularFile(pointer)) {
+            return new ArrayList<>();
+        }
+        try {
+            final List<String> order = new ArrayList<>();
+            for (final String line : Files.readAllLines(pointer, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    order.add(line.trim());
+                }
+            }
+            return order;
+        } catch (final IOException e) {
+            return new ArrayList<>();
+        }
+    }
+}
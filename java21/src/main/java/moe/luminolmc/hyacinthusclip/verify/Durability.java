@@ -0,0 +1,162 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Makes the files a launch publishes durable without syncing each one as it is written.
+ * <p>
+ * With {@code hyacinthusclip.durability=batch} (the default) published files are only remembered. {@link #commit()}
+ * syncs all of them and their directories in one parallel batch at the end of class path setup, then writes
+ * {@value #MARKER}. The marker is removed before the first file of a launch is published, so after a crash in between
+ * the marker is missing and {@link StampManifest} falls back to full verification instead of trusting stamps of files
+ * that may never have reached the disk. {@code hyacinthusclip.durability=none} disables syncing and the marker.
+ */
+public final class Durability {
+    public static final String MARKER = "commit.marker";
+
+    private static final Queue<Path> pending = new ConcurrentLinkedQueue<>();
+    private static volatile Path repoDir;
+    private static volatile boolean markerRemoved;
+
+    private Durability() {
+    }
+
+    public static boolean isBatched() {
+        return !"none".equalsIgnoreCase(System.getProperty("hyacinthusclip.durability", "batch"));
+    }
+
+    public static void open(final Path dir) {
+        repoDir = dir;
+        pending.clear();
+        markerRemoved = false;
+    }
+
+    /**
+     * Returns whether everything the last launch published reached the disk.
+     */
+    public static boolean isCommitted() {
+        final Path dir = repoDir;
+        return !isBatched() || dir == null || Files.isRegularFile(dir.resolve(MARKER));
+    }
+
+    /**
+     * Registers a file that was just moved to its final path.
+     */
+    public static void published(final Path file) {
+        final Path dir = repoDir;
+        if (!isBatched() || dir == null) {
+            return;
+        }
+
+        if (!markerRemoved) {
+            synchronized (Durability.class) {
+                if (!markerRemoved) {
+                    try {
+                        Files.deleteIfExists(dir.resolve(MARKER));
+                        syncDirectory(dir);
+                    } catch (final IOException e) {
+                        Hyacinthusclip.logger.warn("Failed to remove commit marker in {}: {}", dir, e.getMessage());
+                    }
+                    markerRemoved = true;
+                }
+            }
+        }
+        pending.add(file);
+    }
+
+    /**
+     * Syncs everything published since {@link #open} and writes the commit marker.
+     */
+    public static void commit() {
+        final Path dir = repoDir;
+        if (!isBatched() || dir == null || (pending.isEmpty() && isCommitted())) {
+            return;
+        }
+
+        final Set<Path> files = new LinkedHashSet<>();
+        Path file;
+        while ((file = pending.poll()) != null) {
+            files.add(file.toAbsolutePath());
+        }
+        final Set<Path> directories = new LinkedHashSet<>();
+        for (final Path published : files) {
+            if (published.getParent() != null) {
+                directories.add(published.getParent());
+            }
+        }
+
+        try {
+            // Files before the directories that name them, each group synced in parallel
+            syncAll(files, false);
+            syncAll(directories, true);
+
+            final Path marker = dir.resolve(MARKER);
+            Files.writeString(marker, Long.toString(System.currentTimeMillis()), StandardCharsets.UTF_8);
+            sync(marker);
+            syncDirectory(dir);
+            markerRemoved = false;
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to sync published files, they will be verified again on the next launch: {}", e.getMessage());
+        }
+    }
+
+    private static void syncAll(final Set<Path> paths, final boolean directories) throws IOException {
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    if (directories) {
+                        syncDirectory(path);
+                    } else {
+                        sync(path);
+                    }
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, Hashing.executor()));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        } catch (final RuntimeException e) {
+            Throwable cause = e;
+            while (cause.getCause() != null && !(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException io ? io : new IOException(e);
+        }
+    }
+
+    private static void sync(final Path file) throws IOException {
+        if (Files.notExists(file)) {
+            return;
+        }
+        try (final FileChannel channel = FileChannel.open(file, WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void syncDirectory(final Path dir) {
+        // Not every platform can open a directory for syncing, Windows for one cannot
+        try (final FileChannel channel = FileChannel.open(dir, READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            // Best effort
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies files by path, size, modification time and file key (the inode on Unix) without reading them, like
+ * {@link StampManifest} does. That is only sound for files that are replaced rather than modified in place, which holds
+ * for the jars the launcher runs and every artifact it publishes.
+ */
+public final class FileFingerprints {
+    private FileFingerprints() {
+    }
+
+    /**
+     * Returns a one-line description of {@code file} that changes whenever the file is replaced.
+     */
+    public static String describe(final Path file) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        final Object fileKey = attributes.fileKey();
+        return file.toAbsolutePath().normalize() + "\t" + attributes.size() + "\t"
+                + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "\t" + (fileKey == null ? "-" : fileKey);
+    }
+
+    /**
+     * Like {@link #describe}, for a file that may be {@code null} or missing.
+     */
+    public static String describeIfPresent(final Path file) {
+        if (file == null) {
+            return "-";
+        }
+        try {
+            return describe(file);
+        } catch (final IOException e) {
+            return file.toAbsolutePath().normalize() + "\tmissing";
+        }
+    }
+
+    /**
+     * Returns a short hex key of {@code description}, fit for a file name: the first 16 bytes of its SHA-256.
+     */
+    public static String key(final String description) {
+        return HexFormat.of().formatHex(Hashing.sha256(ByteBuffer.wrap(description.getBytes(StandardCharsets.UTF_8))), 0, 16);
+    }
+
+    public static String key(final Path file) throws IOException {
+        return key(describe(file));
+    }
+}
@@ -0,0 +1,140 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import moe.luminolmc.hyacinthusclip.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * SHA-256 hashing that is safe to use from any number of threads. Every thread has its own digest, files are hashed
+ * over memory-mapped regions of {@link #REGION_SIZE} bytes, so neither the file nor a copy of it ends up in the heap.
+ */
+public final class Hashing {
+    private static final long REGION_SIZE = 16L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Hashing::newDigest);
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private static volatile ExecutorService executor;
+
+    private Hashing() {
+    }
+
+    /**
+     * Returns a new SHA-256 digest, for hashing data that is put together from several parts.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw Util.fail("Could not create hashing instance", e);
+        }
+    }
+
+    public static byte[] sha256(final Path file) throws IOException {
+        // Channels of zip file systems cannot be mapped
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            return sha256(Files.newInputStream(file));
+        }
+
+        final MessageDigest digest = DIGEST.get();
+        digest.reset();
+        try (final FileChannel channel = FileChannel.open(file, READ)) {
+            final long size = channel.size();
+            for (long position = 0; position < size; position += REGION_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position)));
+            }
+        } catch (final IOException | RuntimeException e) {
+            digest.reset();
+            throw e;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes the remaining content of {@code buffer} without moving its position.
+     */
+    public static byte[] sha256(final ByteBuffer buffer) {
+        final MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Hashes and closes {@code in}.
+     */
+    public static byte[] sha256(final InputStream in) throws IOException {
+        final MessageDigest digest = DIGEST.get();
+        final byte[] buffer = BUFFER.get();
+        digest.reset();
+        try (in) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (final IOException e) {
+            digest.reset();
+            throw e;
+        }
+        return digest.digest();
+    }
+
+    public static boolean matches(final Path file, final byte[] hash) throws IOException {
+        return Arrays.equals(hash, sha256(file));
+    }
+
+    public static boolean matches(final InputStream in, final byte[] hash) throws IOException {
+        return Arrays.equals(hash, sha256(in));
+    }
+
+    /**
+     * Returns the pool files are verified on. Its size, {@code hyacinthusclip.verifyThreads}, defaults to the number
+     * of processors; verification is bound by disk bandwidth long before that.
+     */
+    public static ExecutorService executor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (Hashing.class) {
+                result = executor;
+                if (result == null) {
+                    final int threads = Math.max(1, Integer.getInteger("hyacinthusclip.verifyThreads", Runtime.getRuntime().availableProcessors()));
+                    final AtomicInteger threadId = new AtomicInteger();
+                    result = Executors.newFixedThreadPool(threads, r -> {
+                        final Thread thread = new Thread(r, "Hyacinthusclip-Verify-" + threadId.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the verification pool once its queued work is done. A later {@link #executor()} call creates a new one.
+     */
+    public static void shutdown() {
+        synchronized (Hashing.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+}
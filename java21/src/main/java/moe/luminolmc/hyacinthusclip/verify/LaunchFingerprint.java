@@ -0,0 +1,123 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlay;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlays;
+import moe.luminolmc.hyacinthusclip.patch.PatchCodecs;
+import moe.luminolmc.hyacinthusclip.update.AutoUpdate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the class path a launch resolved to, together with what it was resolved from. When the launcher jar, the
+ * auto-update jar and the options affecting the class path are unchanged and every file on the class path still
+ * matches its stamp, the next launch reuses the class path without reading the lists or verifying any file.
+ */
+public final class LaunchFingerprint {
+    public static final String FILE_NAME = "launch.fingerprint";
+
+    private LaunchFingerprint() {
+    }
+
+    /**
+     * Returns the class path of the previous launch if nothing it depends on changed, {@code null} otherwise.
+     */
+    public static URL[] match(final Path repoDir, final StampManifest stamps) {
+        final Path file = repoDir.resolve(FILE_NAME);
+        if (StampManifest.isStrict() || !Files.isRegularFile(file)) {
+            return null;
+        }
+
+        final List<URL> urls = new ArrayList<>();
+        final List<String[]> overlays = new ArrayList<>();
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!identity().equals(reader.readLine())) {
+                return null;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t");
+                switch (parts[0]) {
+                    case "url" -> {
+                        final URL url = new URI(parts[1]).toURL();
+                        if (!stamps.isUnchanged(Path.of(url.toURI()))) {
+                            return null;
+                        }
+                        urls.add(url);
+                    }
+                    case "overlay" -> {
+                        if (!stamps.isUnchanged(Path.of(parts[1])) || !stamps.isUnchanged(Path.of(parts[2]))) {
+                            return null;
+                        }
+                        overlays.add(parts);
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            }
+
+            final List<EntryOverlay> opened = new ArrayList<>(overlays.size());
+            for (final String[] overlay : overlays) {
+                opened.add(new EntryOverlay(Path.of(overlay[1]), Path.of(overlay[2]), PatchCodecs.get(overlay[3])));
+            }
+            opened.forEach(EntryOverlays::register);
+        } catch (final IOException | URISyntaxException | RuntimeException e) {
+            Hyacinthusclip.logger.warn("Ignoring unusable launch fingerprint {}: {}", file, e.getMessage());
+            return null;
+        }
+
+        return urls.toArray(new URL[0]);
+    }
+
+    public static void write(final Path repoDir, final URL[] urls) {
+        final Path file = repoDir.resolve(FILE_NAME);
+        final Path temp = repoDir.resolve(FILE_NAME + ".tmp");
+        try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(identity());
+            writer.newLine();
+            for (final URL url : urls) {
+                writer.write("url\t" + url);
+                writer.newLine();
+            }
+            for (final EntryOverlay overlay : EntryOverlays.all()) {
+                writer.write("overlay\t" + overlay.getBaseJar().toAbsolutePath() + "\t" + overlay.getArchiveFile().toAbsolutePath() + "\t" + overlay.getCodecId());
+                writer.newLine();
+            }
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to write launch fingerprint {}: {}", file, e.getMessage());
+            return;
+        }
+
+        try {
+            Util.moveAtomically(temp, file);
+            Durability.published(file);
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to write launch fingerprint {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Describes everything besides the files on the class path that decides which class path a launch resolves to.
+     */
+    private static String identity() {
+        return String.join("|",
+                FileFingerprints.describeIfPresent(AutoUpdate.getCurrentLauncherJarPath()),
+                FileFingerprints.describeIfPresent(AutoUpdate.getTargetJarPath()),
+                String.valueOf(Boolean.getBoolean("hyacinthusclip.useMojangSource")),
+                String.valueOf(System.getProperty("hyacinthusclip.downloadContext"))
+        );
+    }
+}
@@ -0,0 +1,91 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Artifacts are written to a {@value #SUFFIX} file next to their final path and moved into place only once verified,
+ * so a file at its final path is always complete. A launch that is killed mid-write leaves the partial file behind:
+ * if it turns out to be complete it is published by {@link #reuse}, anything left over once the class path is
+ * resolved is removed by {@link #sweep}.
+ */
+public final class PartialFiles {
+    public static final String SUFFIX = ".part";
+
+    private PartialFiles() {
+    }
+
+    public static Path partialFile(final Path target) {
+        return target.resolveSibling(target.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Publishes a partial file left behind by an earlier launch if it already holds the expected content.
+     *
+     * @return whether {@code target} now holds the expected content
+     */
+    public static boolean reuse(final Path target, final byte[] hash) {
+        final Path partial = partialFile(target);
+        if (!Files.isRegularFile(partial)) {
+            return false;
+        }
+
+        try {
+            if (!Hashing.matches(partial, hash)) {
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            publish(partial, target, hash);
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to reuse partial file {}: {}", partial, e.getMessage());
+            return false;
+        }
+
+        Hyacinthusclip.logger.info("Reused completed partial file for {}", target.getFileName());
+        return true;
+    }
+
+    /**
+     * Moves a partial file that is known to hold {@code hash} over {@code target} and stamps it.
+     */
+    public static void publish(final Path partial, final Path target, final byte[] hash) throws IOException {
+        Util.moveAtomically(partial, target);
+        Durability.published(target);
+
+        final StampManifest stamps = StampManifest.active();
+        if (stamps != null) {
+            stamps.record(target, hash);
+        }
+    }
+
+    /**
+     * Deletes every partial file under {@code dir}. Only pass directories the launcher owns, never the server root.
+     */
+    public static void sweep(final Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+
+        final List<Path> leftovers;
+        try (final Stream<Path> files = Files.walk(dir)) {
+            leftovers = files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).toList();
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to look for partial files in {}: {}", dir, e.getMessage());
+            return;
+        }
+
+        for (final Path leftover : leftovers) {
+            try {
+                Files.deleteIfExists(leftover);
+            } catch (final IOException e) {
+                Hyacinthusclip.logger.warn("Failed to delete partial file {}: {}", leftover, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import moe.luminolmc.hyacinthusclip.Hyacinthusclip;
+import moe.luminolmc.hyacinthusclip.Util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which files have already been verified, keyed by their size, modification time and file key (the inode on
+ * Unix). A file whose attributes still match its stamp is accepted without reading it again.
+ * <p>
+ * Stamps live in {@value #FILE_NAME} in the repo dir. They are ignored after a launch that did not finish syncing its
+ * files (see {@link Durability}), and when {@code hyacinthusclip.strictVerify} is set, which always hashes files in
+ * full.
+ */
+public final class StampManifest {
+    public static final String FILE_NAME = "stamps.list";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static volatile StampManifest active;
+
+    private final Path file;
+    private final Map<String, Stamp> stamps;
+    private volatile boolean dirty;
+
+    private StampManifest(final Path file, final Map<String, Stamp> stamps) {
+        this.file = file;
+        this.stamps = stamps;
+    }
+
+    public static boolean isStrict() {
+        return Boolean.getBoolean("hyacinthusclip.strictVerify");
+    }
+
+    /**
+     * Loads the stamps of a repo dir and makes them the ones consulted by {@link #active()}.
+     */
+    public static StampManifest open(final Path repoDir) {
+        // Stamps of files that may not have reached the disk before a crash cannot be trusted
+        final StampManifest manifest = read(repoDir, !isStrict() && Durability.isCommitted());
+        active = manifest;
+        return manifest;
+    }
+
+    /**
+     * Loads the stamps of another repo dir without making them active. The caller is responsible for checking that
+     * the launch that wrote them was committed.
+     */
+    public static StampManifest load(final Path repoDir) {
+        return read(repoDir, !isStrict());
+    }
+
+    private static StampManifest read(final Path repoDir, final boolean trusted) {
+        final Path file = repoDir.resolve(FILE_NAME);
+        final Map<String, Stamp> stamps = new ConcurrentHashMap<>();
+        if (trusted && Files.isRegularFile(file)) {
+            try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] parts = line.split("\t");
+                    if (parts.length != 5) {
+                        continue;
+                    }
+                    stamps.put(parts[4], new Stamp(HEX.parseHex(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                }
+            } catch (final IOException | IllegalArgumentException e) {
+                // A damaged stamp file only costs a full verification
+                Hyacinthusclip.logger.warn("Ignoring unreadable stamp file {}: {}", file, e.getMessage());
+                stamps.clear();
+            }
+        }
+
+        return new StampManifest(file, stamps);
+    }
+
+    public static StampManifest active() {
+        return active;
+    }
+
+    /**
+     * Returns whether {@code path} was verified against {@code hash} and has not changed since.
+     */
+    public boolean matches(final Path path, final byte[] hash) {
+        final Stamp stamp = this.current(path);
+        return stamp != null && Arrays.equals(stamp.hash(), hash);
+    }
+
+    /**
+     * Returns whether {@code path} was verified against any hash and has not changed since.
+     */
+    public boolean isUnchanged(final Path path) {
+        return this.current(path) != null;
+    }
+
+    /**
+     * Returns the hash {@code path} was verified against if it has not changed since, {@code null} otherwise.
+     */
+    public byte[] verifiedHash(final Path path) {
+        final Stamp stamp = this.current(path);
+        return stamp == null ? null : stamp.hash();
+    }
+
+    private Stamp current(final Path path) {
+        final String key = key(path);
+        if (key == null || isStrict()) {
+            return null;
+        }
+
+        final Stamp stamp = this.stamps.get(key);
+        if (stamp == null) {
+            return null;
+        }
+        final Stamp actual = stat(path, stamp.hash());
+        return stamp.equals(actual) ? stamp : null;
+    }
+
+    /**
+     * Records that {@code path} has just been verified against {@code hash}.
+     */
+    public void record(final Path path, final byte[] hash) {
+        final String key = key(path);
+        if (key == null) {
+            return;
+        }
+
+        final Stamp stamp = stat(path, hash);
+        if (stamp != null && !stamp.equals(this.stamps.put(key, stamp))) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Writes the stamps back if any changed, dropping those of files that no longer exist.
+     */
+    public void save() {
+        if (!this.dirty) {
+            return;
+        }
+
+        final Path temp = this.file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (final BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (final Map.Entry<String, Stamp> entry : this.stamps.entrySet()) {
+                    if (Files.notExists(Path.of(entry.getKey()))) {
+                        continue;
+                    }
+                    final Stamp stamp = entry.getValue();
+                    writer.write(HEX.formatHex(stamp.hash()) + "\t" + stamp.size() + "\t" + stamp.modified() + "\t" + stamp.fileKey() + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Util.moveAtomically(temp, this.file);
+            Durability.published(this.file);
+            this.dirty = false;
+        } catch (final IOException e) {
+            Hyacinthusclip.logger.warn("Failed to write stamp file {}: {}", this.file, e.getMessage());
+        }
+    }
+
+    private static String key(final Path path) {
+        // Files inside zip file systems have no stable identity of their own
+        if (path.getFileSystem() != FileSystems.getDefault()) {
+            return null;
+        }
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private static Stamp stat(final Path path, final byte[] hash) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            final Object fileKey = attributes.fileKey();
+            return new Stamp(
+                    hash,
+                    attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    fileKey == null ? "-" : fileKey.toString()
+            );
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private record Stamp(byte[] hash, long size, long modified, String fileKey) {
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Stamp other
+                    && Arrays.equals(this.hash, other.hash)
+                    && this.size == other.size
+                    && this.modified == other.modified
+                    && this.fileKey.equals(other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.hash) * 31 + Long.hashCode(this.size);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package moe.luminolmc.hyacinthusclip.verify;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes a file while computing its SHA-256, so a freshly written file never has to be read back to be verified.
+ * <p>
+ * Data goes to the {@linkplain PartialFiles#partialFile partial file} of the target. On close, a file that matches the
+ * expected hash is moved over the target in one step and stamped in the active {@link StampManifest}; one that does
+ * not is deleted and the target is left untouched. The result is available from {@link #matches()}.
+ */
+public final class VerifyingOutputStream extends FilterOutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Path partial;
+    private final byte[] expectedHash;
+    private final MessageDigest digest = Hashing.newDigest();
+    private byte[] actualHash;
+
+    public VerifyingOutputStream(final Path file, final byte[] expectedHash) throws IOException {
+        this(file, PartialFiles.partialFile(file), expectedHash);
+    }
+
+    private VerifyingOutputStream(final Path file, final Path partial, final byte[] expectedHash) throws IOException {
+        super(new BufferedOutputStream(Files.newOutputStream(partial, CREATE, WRITE, TRUNCATE_EXISTING), BUFFER_SIZE));
+        this.file = file;
+        this.partial = partial;
+        this.expectedHash = expectedHash;
+    }
+
+    /**
+     * Copies {@code in} to {@code file} and closes both, returning whether the written data matched {@code expectedHash}
+     * and was published.
+     */
+    public static boolean copy(final InputStream in, final Path file, final byte[] expectedHash) throws IOException {
+        final VerifyingOutputStream out = new VerifyingOutputStream(file, expectedHash);
+        try (in; out) {
+            in.transferTo(out);
+        }
+        return out.matches();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        this.digest.update((byte) b);
+        this.out.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        this.digest.update(b, off, len);
+        this.out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.actualHash != null) {
+            return;
+        }
+        try {
+            super.close();
+        } catch (final IOException e) {
+            Files.deleteIfExists(this.partial);
+            throw e;
+        }
+        this.actualHash = this.digest.digest();
+
+        if (!this.matches()) {
+            Files.deleteIfExists(this.partial);
+            return;
+        }
+        PartialFiles.publish(this.partial, this.file, this.expectedHash);
+    }
+
+    /**
+     * Returns whether the data written matched the expected hash. Only valid after {@link #close()}.
+     */
+    public boolean matches() {
+        if (this.actualHash == null) {
+            throw new IllegalStateException("Output to " + this.file + " has not been closed yet");
+        }
+        return Arrays.equals(this.expectedHash, this.actualHash);
+    }
+}
@@ -1,16 +1,20 @@
 package org.leavesmc.leavesclip.mixin;
 
+import moe.luminolmc.hyacinthusclip.ClassLoadProfile;
+import moe.luminolmc.hyacinthusclip.overlay.EntryOverlays;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.MixinEnvironment;
 import org.spongepowered.asm.mixin.transformer.IMixinTransformer;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
+import java.util.Enumeration;
 import java.util.Objects;
 
 public class MixinURLClassLoader extends URLClassLoader {
@@ -41,6 +45,28 @@ public class MixinURLClassLoader extends URLClassLoader {
         }
     }
 
+    @Override
+    public @Nullable URL findResource(String name) {
+        // Entries patched lazily are served from their overlay at the position of the original jar on the class path
+        if (!EntryOverlays.covers(name)) {
+            return super.findResource(name);
+        }
+        try {
+            EntryOverlays.Source source = EntryOverlays.locate(name, getURLs(), super.findResources(name));
+            return source == null ? null : source.url();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (!EntryOverlays.covers(name)) {
+            return super.findResources(name);
+        }
+        return EntryOverlays.findResources(name, getURLs(), super.findResources(name));
+    }
+
     @Override
     protected Class<?> findClass(@NotNull String name) throws ClassNotFoundException {
         String path = name.replace('.', '/') + ".class";
@@ -53,7 +79,9 @@ public class MixinURLClassLoader extends URLClassLoader {
             byte[] mixin = transformer.transformClass(MixinEnvironment.getCurrentEnvironment(), name, original);
             byte[] transformed = AccessWidenerManager.applyAccessWidener(mixin);
 
-            return defineClass(name, transformed, 0, transformed.length, dummyDomain);
+            final Class<?> defined = defineClass(name, transformed, 0, transformed.length, dummyDomain);
+            ClassLoadProfile.defined(name);
+            return defined;
         } catch (Exception e) {
             throw new ClassNotFoundException(name, e);
         }
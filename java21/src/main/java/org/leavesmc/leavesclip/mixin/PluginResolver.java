@@ -1,6 +1,7 @@
 package org.leavesmc.leavesclip.mixin;
 
 import com.google.gson.Gson;
+import moe.luminolmc.hyacinthusclip.Housekeeping;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -43,7 +44,8 @@ public class PluginResolver {
         if (!ensureMixinsDir(mixinsDir)) return;
 
         processPlugins(pluginsDir);
-        cleanOutdatedMixinJars(mixinsDir);
+        // Mixin jars are resolved from the plugin metas, leftovers in the directory do not affect the launch
+        Housekeeping.defer("clean-mixin-jars", () -> cleanOutdatedMixinJars(mixinsDir));
     }
 
     private static void processPlugins(@NotNull File pluginsDir) {
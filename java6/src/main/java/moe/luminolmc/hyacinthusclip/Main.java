@@ -10,6 +10,9 @@
 package moe.luminolmc.hyacinthusclip;
 
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
 
 public final class Main {
 
@@ -21,14 +24,41 @@ public final class Main {
         }
 
         try {
-            final Class<?> hyacinthusclipClazz = Class.forName("moe.luminolmc.hyacinthusclip.Hyacinthusclip");
+            final ClassLoader launcherLoader = isolateLauncher() ? createLauncherLoader() : null;
+            final Class<?> hyacinthusclipClazz = launcherLoader == null
+                ? Class.forName("moe.luminolmc.hyacinthusclip.Hyacinthusclip")
+                : Class.forName("moe.luminolmc.hyacinthusclip.Hyacinthusclip", true, launcherLoader);
             final Method mainMethod = hyacinthusclipClazz.getMethod("main", String[].class);
             mainMethod.invoke(null, (Object) args);
+
+            if (launcherLoader != null) {
+                // Nothing here refers to the launcher past this point, once it let go of its threads it can be unloaded
+                hyacinthusclipClazz.getMethod("handoff").invoke(null);
+            }
         } catch (final Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * With {@code hyacinthusclip.isolateLauncher}, the launcher is loaded from this jar again by a class loader of its
+     * own, which the server's class loader does not see. The mixin environment stays on the application class loader
+     * as the server's classes are linked against it.
+     */
+    private static boolean isolateLauncher() {
+        return Boolean.getBoolean("hyacinthusclip.isolateLauncher")
+            && !Boolean.getBoolean("leavesclip.enable.mixin")
+            && !Boolean.getBoolean("hyacinthusclip.enable.mixin");
+    }
+
+    private static ClassLoader createLauncherLoader() {
+        final CodeSource codeSource = Main.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) {
+            return null;
+        }
+        return new URLClassLoader(new URL[]{codeSource.getLocation()}, Main.class.getClassLoader().getParent());
+    }
+
     private static int getJavaVersion() {
         final String version = System.getProperty("java.specification.version");
         final String[] parts = version.split("\\.");